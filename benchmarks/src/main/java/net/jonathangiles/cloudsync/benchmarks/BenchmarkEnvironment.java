@@ -0,0 +1,79 @@
+package net.jonathangiles.cloudsync.benchmarks;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import net.jonathangiles.cloudsync.engine.BackupEngineModule;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A throwaway working directory holding a backup tree, a config.json pointing at it, and (once the injector is created)
+ * the local database - so benchmarks never touch the real config or database.
+ */
+class BenchmarkEnvironment {
+
+    static final String BACKUP_NAME = "benchmark";
+
+    private final Path workDir;
+    private final Path tree;
+
+    BenchmarkEnvironment() throws IOException {
+        this("jpa");
+    }
+
+    /**
+     * Creates an environment whose records are kept in the given kind of data store (see the dataStore setting).
+     */
+    BenchmarkEnvironment(String dataStore) throws IOException {
+        this.workDir = Files.createTempDirectory("cloudsync-jmh");
+        this.tree = Files.createDirectories(workDir.resolve("tree"));
+
+        String json = "{\n" +
+                "  \"azureAccountName\": \"\",\n" +
+                "  \"azureAccountKey\": \"\",\n" +
+                "  \"cloudStore\": \"simulated\",\n" +
+                "  \"simulatorLatency\": 0,\n" +
+                "  \"dataStore\": \"" + dataStore + "\",\n" +
+                "  \"backups\": [ { \"name\": \"" + BACKUP_NAME + "\", \"root\": \"" + tree.toString().replace("\\", "\\\\") + "\" } ]\n" +
+                "}\n";
+        Files.write(workDir.resolve("config.json"), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    Path getTree() {
+        return tree;
+    }
+
+    Path createFile(String name, int size) throws IOException {
+        Path p = tree.resolve(name);
+        Files.createDirectories(p.getParent());
+        Files.write(p, new byte[size]);
+        return p;
+    }
+
+    Injector createInjector() {
+        // the database url is relative, so Derby creates it under its system home - and the other local stores
+        // default to living beside it
+        System.setProperty("derby.system.home", workDir.toString());
+        return Guice.createInjector(new BackupEngineModule(workDir.toFile()));
+    }
+
+    void delete() throws IOException {
+        Files.walkFileTree(workDir, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
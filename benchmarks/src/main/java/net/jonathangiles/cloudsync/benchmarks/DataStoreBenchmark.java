@@ -0,0 +1,82 @@
+package net.jonathangiles.cloudsync.benchmarks;
+
+import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record lookups and writes through each data store - JPA on embedded Derby, and the log-structured store - holding a
+ * backup of {@link #records} files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataStoreBenchmark {
+
+    // writes are grouped into batches, so we measure this many at a time
+    private static final int WRITES_PER_INVOCATION = 100;
+
+    @Param({ "10000" })
+    public int records;
+
+    @Param({ "jpa", "log" })
+    public String store;
+
+    private BenchmarkEnvironment environment;
+    private DataStore dataStore;
+    private Backup backup;
+    private final List<Path> paths = new ArrayList<>();
+    private final List<LocalRecord> stored = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        environment = new BenchmarkEnvironment(store);
+        dataStore = environment.createInjector().getInstance(DataStore.class);
+        backup = dataStore.getBackupList().get(0);
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            Path p = environment.createFile("dir" + (i / 100) + "/file" + i + ".bin", 16);
+            LocalRecord record = LocalRecord.create(backup, p).get();
+            paths.add(p);
+            stored.add(record);
+            writes.add(dataStore.updateLocalRecord(backup, record));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        environment.delete();
+    }
+
+    @Benchmark
+    public LocalRecord getLocalRecord() {
+        return dataStore.getLocalRecord(backup, paths.get(ThreadLocalRandom.current().nextInt(paths.size())));
+    }
+
+    // a record that has changed being written back, as happens after every upload
+    @Benchmark
+    @OperationsPerInvocation(WRITES_PER_INVOCATION)
+    public void updateLocalRecord() {
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[WRITES_PER_INVOCATION];
+        for (int i = 0; i < writes.length; i++) {
+            LocalRecord record = stored.get(ThreadLocalRandom.current().nextInt(stored.size()));
+            record.setLastModifiedTime(record.getLastModifiedTime() + 1);
+            writes[i] = dataStore.updateLocalRecord(backup, record);
+        }
+        CompletableFuture.allOf(writes).join();
+    }
+}
@@ -0,0 +1,75 @@
+package net.jonathangiles.cloudsync.benchmarks;
+
+import net.jonathangiles.cloudsync.engine.util.DirectoryWatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the watcher takes to dispatch a burst of changes: every file in a directory is written {@link #writes}
+ * times, and the invocation ends when each file has been dispatched. With coalescing, each file should be dispatched
+ * once however many times it was written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryWatcherBenchmark {
+
+    @Param({ "1000" })
+    public int files;
+
+    // kept low enough that a burst doesn't overflow the platform's event queue (16384 events by default on Linux)
+    @Param({ "1", "5" })
+    public int writes;
+
+    @Param({ "0", "50" })
+    public long quietPeriod;
+
+    private BenchmarkEnvironment environment;
+    private DirectoryWatcher watcher;
+    private final List<Path> paths = new ArrayList<>();
+    private final Set<Path> dispatched = ConcurrentHashMap.newKeySet();
+    private final byte[] content = new byte[16];
+
+    @Setup
+    public void setup() throws IOException {
+        environment = new BenchmarkEnvironment();
+        for (int i = 0; i < files; i++) {
+            paths.add(environment.createFile("burst/file" + i + ".bin", 16));
+        }
+        // a burst is over long before the maximum delay, so it never comes into it
+        watcher = new DirectoryWatcher(quietPeriod, 30000, 2);
+        watcher.watch(environment.getTree(), (kind, path) -> dispatched.add(path));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        watcher.close();
+        environment.delete();
+    }
+
+    @Benchmark
+    public int burst() throws IOException {
+        dispatched.clear();
+        for (int w = 0; w < writes; w++) {
+            content[0]++;
+            for (Path p : paths) {
+                Files.write(p, content);
+            }
+        }
+        while (dispatched.size() < files) {
+            Thread.yield();
+        }
+        return dispatched.size();
+    }
+}
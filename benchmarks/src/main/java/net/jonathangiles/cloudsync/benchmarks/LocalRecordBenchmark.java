@@ -0,0 +1,59 @@
+package net.jonathangiles.cloudsync.benchmarks;
+
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-file cost of the consistency check and the watcher: building a record from a file, and checking a file
+ * against its record. Both go to the file system for the file's attributes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalRecordBenchmark {
+
+    private BenchmarkEnvironment environment;
+    private Backup backup;
+    private Path file;
+    private Path otherFile;
+    private LocalRecord record;
+
+    @Setup
+    public void setup() throws IOException {
+        environment = new BenchmarkEnvironment();
+        backup = new Backup(BenchmarkEnvironment.BACKUP_NAME, environment.getTree());
+        file = environment.createFile("dir/file.bin", 4096);
+        otherFile = environment.createFile("dir/other.bin", 4096);
+        record = LocalRecord.create(backup, file).get();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        environment.delete();
+    }
+
+    @Benchmark
+    public Optional<LocalRecord> create() {
+        return LocalRecord.create(backup, file);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return record.matches(file);
+    }
+
+    // the path check fails first, so this is the cost of a record that is looked up for the wrong file
+    @Benchmark
+    public boolean matchesOtherPath() {
+        return record.matches(otherFile);
+    }
+}
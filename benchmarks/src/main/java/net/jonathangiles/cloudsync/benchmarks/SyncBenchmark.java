@@ -0,0 +1,180 @@
+package net.jonathangiles.cloudsync.benchmarks;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import net.jonathangiles.cloudsync.engine.BackupEngine;
+import net.jonathangiles.cloudsync.engine.BackupEngineModule;
+import net.jonathangiles.cloudsync.engine.cloud.CloudStore;
+import net.jonathangiles.cloudsync.engine.cloud.simulated.SimulatedCloudStore;
+import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.model.Backup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * End-to-end throughput benchmark for the whole {@link BackupEngine} flow - consistency check, task queue, uploads and
+ * local database - against the {@link SimulatedCloudStore}. It generates a synthetic tree, backs it up from an empty
+ * database, and reports how long it took for every file to be recorded as uploaded.
+ *
+ * <p>Arguments are given as key=value pairs, all of them optional:
+ * <ul>
+ *     <li>profile - small (many small files), large (a few huge files) or mixed. Defaults to mixed.</li>
+ *     <li>scale - multiplies the number of files in the profile. Defaults to 1.</li>
+ *     <li>dir - the working directory for the tree, database and config. Defaults to a new temporary directory.</li>
+ *     <li>latency, bandwidth, throttleRate - passed on to the simulator (see the README).</li>
+ *     <li>watchFirst - passed on to the engine. With false, the time to protection is the length of the startup checks.</li>
+ * </ul>
+ *
+ * <p>It isn't a JMH benchmark, so it is run on its own from the benchmarks jar, for example:
+ * {@code java -cp benchmarks/target/benchmarks.jar net.jonathangiles.cloudsync.benchmarks.SyncBenchmark profile=small
+ * scale=2 latency=50}
+ */
+public class SyncBenchmark {
+
+    private static final String BACKUP_NAME = "benchmark";
+
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    private static final long POLL_INTERVAL = 100;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i > 0) {
+                options.put(arg.substring(0, i), arg.substring(i + 1));
+            }
+        }
+
+        String profile = options.getOrDefault("profile", "mixed");
+        int scale = Integer.parseInt(options.getOrDefault("scale", "1"));
+        Path workDir = options.containsKey("dir")
+                ? Files.createDirectories(Paths.get(options.get("dir")))
+                : Files.createTempDirectory("cloudsync-benchmark");
+
+        // generate the tree
+        Path tree = workDir.resolve("tree");
+        TreeStats stats = new TreeStats();
+        Random random = new Random(42);
+        switch (profile) {
+            case "small":
+                generate(tree.resolve("small"), 20000 * scale, KB, 16 * KB, random, stats);
+                break;
+            case "large":
+                generate(tree.resolve("large"), 3 * scale, 300 * MB, 300 * MB, random, stats);
+                break;
+            case "mixed":
+                generate(tree.resolve("small"), 5000 * scale, KB, 16 * KB, random, stats);
+                generate(tree.resolve("medium"), 200 * scale, MB, 32 * MB, random, stats);
+                generate(tree.resolve("large"), scale, 300 * MB, 300 * MB, random, stats);
+                break;
+            default:
+                System.out.println("Unknown profile '" + profile + "', expected small, large or mixed");
+                System.exit(-1);
+        }
+        System.out.println("Generated " + stats.files + " files (" + stats.bytes / MB + "MB) in " + tree);
+
+        // the engine reads config.json from the working directory we give it, and the database is created there too
+        writeConfig(workDir, tree, options);
+        System.setProperty("derby.system.home", workDir.toString());
+
+        Injector injector = Guice.createInjector(new BackupEngineModule(workDir.toFile()));
+        BackupEngine engine = injector.getInstance(BackupEngine.class);
+        DataStore dataStore = injector.getInstance(DataStore.class);
+        CloudStore cloudStore = injector.getInstance(CloudStore.class);
+
+        long start = System.nanoTime();
+        engine.start();
+        // changes are watched for once start returns - with watchFirst, the checks are still running in the background
+        long protectedAt = System.nanoTime();
+
+        // the backup is consistent once every file has a committed record
+        Backup backup = dataStore.getBackupList().stream()
+                .filter(b -> BACKUP_NAME.equals(b.getBackupName()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Backup '" + BACKUP_NAME + "' was not created"));
+        while (dataStore.getRecordIndex(backup).size() < stats.files) {
+            Thread.sleep(POLL_INTERVAL);
+        }
+        long consistent = System.nanoTime();
+
+        double seconds = (consistent - start) / 1e9;
+        System.out.println();
+        System.out.println("Profile:              " + profile + " (scale " + scale + ")");
+        System.out.println("Files:                " + stats.files);
+        System.out.println("Bytes:                " + stats.bytes);
+        System.out.printf("Time to protection:   %.2fs%n", (protectedAt - start) / 1e9);
+        System.out.printf("Time to consistent:   %.2fs%n", seconds);
+        System.out.printf("Files/s:              %.1f%n", stats.files / seconds);
+        System.out.printf("MB/s:                 %.2f%n", stats.bytes / (double) MB / seconds);
+        if (cloudStore instanceof SimulatedCloudStore) {
+            SimulatedCloudStore simulator = (SimulatedCloudStore) cloudStore;
+            System.out.println("Requests:             " + simulator.getRequests());
+            System.out.println("Throttled requests:   " + simulator.getThrottledRequests());
+            System.out.println("Files uploaded:       " + simulator.getFilesUploaded());
+            System.out.println("Files copied:         " + simulator.getFilesCopied());
+            System.out.println("Failed tasks:         " + simulator.getFailedTasks());
+        }
+
+        // the folder watchers would otherwise keep us running
+        System.exit(0);
+    }
+
+    private static void generate(Path dir, int count, long minSize, long maxSize, Random random, TreeStats stats) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(maxSize, MB)];
+        for (int i = 0; i < count; i++) {
+            Path file = dir.resolve("dir" + (i / FILES_PER_DIRECTORY)).resolve("file" + i + ".bin");
+            Files.createDirectories(file.getParent());
+
+            // random content, so files are neither compressible nor duplicates of each other
+            long size = minSize + (maxSize > minSize ? (long) (random.nextDouble() * (maxSize - minSize)) : 0);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (long written = 0; written < size; ) {
+                    int n = (int) Math.min(buffer.length, size - written);
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, n);
+                    written += n;
+                }
+            }
+            stats.files++;
+            stats.bytes += size;
+        }
+    }
+
+    private static void writeConfig(Path workDir, Path tree, Map<String, String> options) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"azureAccountName\": \"\",\n");
+        json.append("  \"azureAccountKey\": \"\",\n");
+        json.append("  \"cloudStore\": \"simulated\",\n");
+        for (String option : new String[] { "latency", "bandwidth", "throttleRate" }) {
+            if (options.containsKey(option)) {
+                String key = "simulator" + Character.toUpperCase(option.charAt(0)) + option.substring(1);
+                json.append("  \"").append(key).append("\": ").append(options.get(option)).append(",\n");
+            }
+        }
+        if (options.containsKey("watchFirst")) {
+            json.append("  \"watchFirst\": ").append(options.get("watchFirst")).append(",\n");
+        }
+        json.append("  \"backups\": [ { \"name\": \"").append(BACKUP_NAME).append("\", \"root\": \"")
+                .append(tree.toString().replace("\\", "\\\\")).append("\" } ]\n");
+        json.append("}\n");
+        Files.write(workDir.resolve("config.json"), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class TreeStats {
+        private int files;
+        private long bytes;
+    }
+}
@@ -0,0 +1,56 @@
+package net.jonathangiles.cloudsync.benchmarks;
+
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
+import net.jonathangiles.cloudsync.engine.util.Task;
+import net.jonathangiles.cloudsync.engine.util.TaskQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the task queue from {@link TaskQueue#send(Task)} through to delivery to the subscriber. The
+ * subscriber does no work, so this is the overhead the queue adds to every file change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+
+    private static final int TASKS_PER_INVOCATION = 10000;
+
+    private TaskQueue taskQueue;
+    private final AtomicLong delivered = new AtomicLong();
+    private long sent;
+    private Task task;
+
+    @Setup
+    public void setup() {
+        // a task queue only supports a single subscriber, so each trial gets its own
+        taskQueue = new TaskQueue(new Metrics());
+        taskQueue.toFlowable().subscribe(t -> delivered.incrementAndGet());
+        task = Task.create(Task.Type.UPLOAD_FILE, null, null, null, null);
+    }
+
+    // sending alone - delivery keeps up in the background, and the queue blocks us if it doesn't
+    @Benchmark
+    public void send() {
+        taskQueue.send(task);
+    }
+
+    // sending a batch and waiting until the subscriber has seen all of it
+    @Benchmark
+    @OperationsPerInvocation(TASKS_PER_INVOCATION)
+    public void sendAndDispatch() {
+        for (int i = 0; i < TASKS_PER_INVOCATION; i++) {
+            taskQueue.send(task);
+        }
+        sent += TASKS_PER_INVOCATION;
+        while (delivered.get() < sent) {
+            Thread.yield();
+        }
+    }
+}
@@ -2,19 +2,35 @@ package net.jonathangiles.cloudsync.engine;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
-import java.util.List;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import net.jonathangiles.cloudsync.engine.cloud.CloudFile;
 import net.jonathangiles.cloudsync.engine.cloud.CloudStore;
 import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.db.RecordIndex;
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
 import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.DirectorySummary;
 import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.util.ContentHash;
+import net.jonathangiles.cloudsync.engine.util.DirectoryScanner;
+import net.jonathangiles.cloudsync.engine.util.DirectoryWatcher;
+import net.jonathangiles.cloudsync.engine.util.DirectoryScanner.ScannedDirectory;
+import net.jonathangiles.cloudsync.engine.util.DirectoryScanner.ScannedFile;
+import net.jonathangiles.cloudsync.engine.util.RenameDetector;
 import net.jonathangiles.cloudsync.engine.util.Task;
+import net.jonathangiles.cloudsync.engine.util.TaskJournal;
 import net.jonathangiles.cloudsync.engine.util.TaskQueue;
-import net.jonathangiles.cloudsync.engine.util.WatchDir;
 import net.jonathangiles.cloudsync.engine.util.config.Config;
 
 import javax.inject.Inject;
@@ -24,6 +40,9 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
 public class BackupEngine {
+    // below this size a server-side copy saves too little over an upload to be worth hashing the file for
+    private static final long DEDUPLICATION_THRESHOLD = 64 * 1024;
+
     // local data store
     private final DataStore localDataStore;
 
@@ -33,6 +52,18 @@ public class BackupEngine {
     // task queue
     private final TaskQueue taskQueue;
 
+    // pending tasks and consistency check progress, so that a restart can resume rather than start over
+    private final TaskJournal journal;
+
+    private final Config config;
+
+    private final Metrics metrics;
+
+    private final DirectoryWatcher watcher;
+
+    // holds deleted files back in case they were moved - null if rename detection is off
+    private final RenameDetector renames;
+
     public static void main(String[] args) {
         Injector injector = Guice.createInjector(new BackupEngineModule());
         BackupEngine backupEngine = injector.getInstance(BackupEngine.class);
@@ -40,72 +71,413 @@ public class BackupEngine {
     }
 
     @Inject
-    private BackupEngine(DataStore dataStore, CloudStore cloudStore, TaskQueue taskQueue) {
+    private BackupEngine(DataStore dataStore, CloudStore cloudStore, TaskQueue taskQueue, TaskJournal journal, Config config, Metrics metrics,
+                         DirectoryWatcher watcher) {
         this.localDataStore = dataStore;
         this.cloudStore = cloudStore;
         this.taskQueue = taskQueue;
+        this.journal = journal;
+        this.config = config;
+        this.metrics = metrics;
+        this.watcher = watcher;
+        this.renames = config.getRenameWindow() > 0 ? new RenameDetector(config.getRenameWindow(), this::removeUnclaimed) : null;
     }
 
-    private void start() {
+    public void start() {
+        // publish runtime metrics over JMX
+        metrics.register();
+
+        // without an intact journal we can't know what the last run left unfinished, so nothing recorded about the
+        // file system (including the directory summaries) is trusted, and every file is checked
+        boolean journalIntact = journal.open();
+        if (!journalIntact) {
+            System.out.println("No intact task journal was found - running a full consistency check");
+        }
+
         // load backup model
         List<Backup> backupList = localDataStore.getBackupList();
 
         // for each backup, we need to ensure that there is a corresponding container in the cloud, and
-        // because the app is just booting up, we need to do a full consistency check on each backup
+        // because the app is just booting up, we need to do a consistency check on each backup
         backupList.parallelStream().forEach(backup -> {
             // make a backup container on Azure Storage if it doesn't currently exist
             validateBackupContainerExists(backup);
 
-            // run a startup consistency check to make sure we are consistent between local filesystem, local database,
-            // and remote storage
-            runConsistencyCheck(backup);
+            if (config.isWatchFirst()) {
+                // changes are backed up from now on, while the checks catch up with the rest in the background. Their
+                // thread runs at low priority, and the tasks it queues go behind those for live changes
+                startFolderWatcher(backup);
+                Thread checks = new Thread(() -> runStartupChecks(backup, journalIntact), "startup-checks-" + backup.getBackupName());
+                checks.setPriority(Thread.MIN_PRIORITY);
+                checks.start();
+            } else {
+                runStartupChecks(backup, journalIntact);
 
-            // start up the folder watcher to watch for changes at runtime
-            startFolderWatcher(backup);
+                // start up the folder watcher to watch for changes at runtime
+                startFolderWatcher(backup);
+            }
         });
     }
 
+    private void runStartupChecks(Backup backup, boolean journalIntact) {
+        // bring the local records in line with what is actually in the cloud, so that files which are already
+        // backed up aren't uploaded again
+        boolean reconciled = shouldReconcile(backup) && reconcileWithCloud(backup);
+
+        // queue again whatever the last run queued but never finished
+        if (journalIntact) {
+            replayJournal(backup);
+        }
+
+        // run a startup consistency check to make sure we are consistent between local filesystem, local database,
+        // and remote storage. Reconciliation may have changed records in directories the summaries vouch for, so
+        // they are not trusted after it
+        runConsistencyCheck(backup, journalIntact && !reconciled);
+    }
+
     private void validateBackupContainerExists(Backup backup) {
         cloudStore.createContainer(backup);
     }
 
+    private boolean shouldReconcile(Backup backup) {
+        switch (config.getReconcile()) {
+            case "always": return true;
+            case "never": return false;
+            default: return localDataStore.getRecordIndex(backup).size() == 0;
+        }
+    }
+
+    /*
+     * Compares a listing of the backup's container with the local records, both in name order, and deals with every
+     * difference between them:
+     *  1) A file in the cloud with no record, which matches the local file, is already backed up - record it!
+     *  2) A file in the cloud with no record, and no local file, is left over - remove it from the cloud!
+     *  3) A record whose file is not in the cloud - upload the file again (or forget it, if it is gone locally).
+     *  4) A record that disagrees with the cloud about which version of the file was uploaded - take the cloud's word
+     *     for it, so the consistency check replaces it if the local file differs.
+     * A file in the cloud with no record that doesn't match the local file is left for the consistency check to upload.
+     * Returns false if the listing could not be completed.
+     */
+    private boolean reconcileWithCloud(Backup backup) {
+        System.out.println("Reconciling backup '" + backup.getBackupName() + "' with the cloud");
+
+        List<String> recordPaths = localDataStore.getRecordIndex(backup).getPaths();
+        recordPaths.sort(CloudFile.NAME_ORDER);
+        Iterator<String> records = recordPaths.iterator();
+        String record = records.hasNext() ? records.next() : null;
+
+        // the consistency check must see the recorded files, so we wait for these writes before it starts
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        int recorded = 0;
+        int removed = 0;
+        int missing = 0;
+        try {
+            Iterator<CloudFile> files = cloudStore.listFiles(backup);
+            while (files.hasNext()) {
+                CloudFile file = files.next();
+                // the watcher may already be running, so each file is dealt with while holding the backup
+                awaitQueueRoom();
+                synchronized (backup) {
+                    while (record != null && CloudFile.NAME_ORDER.compare(record, file.getName()) < 0) {
+                        missing += reuploadMissingFile(backup, Paths.get(record), updates);
+                        record = records.hasNext() ? records.next() : null;
+                    }
+
+                    if (file.getName().equals(record)) {
+                        adoptCloudVersion(backup, file, updates);
+                        record = records.hasNext() ? records.next() : null;
+                        continue;
+                    }
+
+                    // files outside the backup's root are left from when it was somewhere else
+                    Path p = Paths.get(file.getName());
+                    BasicFileAttributes attributes = p.startsWith(backup.getRootDirectory()) ? readAttributes(p) : null;
+                    if (attributes == null) {
+                        long detectedTime = System.nanoTime();
+                        send(Task.create(Task.Type.DELETE_FILE, backup, p, null, () -> synced(backup, p, detectedTime)));
+                        removed++;
+                    } else if (isBackedUp(file, p, attributes)) {
+                        LocalRecord localRecord = LocalRecord.create(backup, p, attributes);
+                        localRecord.setCodec(file.getCodec());
+                        updates.add(localDataStore.updateLocalRecord(backup, localRecord));
+                        recorded++;
+                    }
+                }
+            }
+            while (record != null) {
+                awaitQueueRoom();
+                synchronized (backup) {
+                    missing += reuploadMissingFile(backup, Paths.get(record), updates);
+                }
+                record = records.hasNext() ? records.next() : null;
+            }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            System.out.println("Reconciliation of backup '" + backup.getBackupName() + "' stopped part way");
+            return false;
+        } finally {
+            CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        System.out.println("Reconciliation of backup '" + backup.getBackupName() + "' is complete: " + recorded
+                + " files were already in the cloud, " + removed + " left over files are being removed, and "
+                + missing + " missing files are being uploaded again");
+        return true;
+    }
+
+    /*
+     * Returns 1 if the file was queued to be uploaded again.
+     */
+    private int reuploadMissingFile(Backup backup, Path p, List<CompletableFuture<Void>> updates) {
+        LocalRecord localRecord = localDataStore.getLocalRecord(backup, p);
+        if (localRecord == null || localRecord.getPack() != null) {
+            // packed files have no blob of their own
+            return 0;
+        }
+
+        if (!Files.exists(p)) {
+            // there is nothing to remove from the cloud, so the record can simply go
+            updates.add(localDataStore.deleteLocalRecord(localRecord));
+            return 0;
+        }
+
+        // none of the blocks or content of the last upload can be reused
+        localRecord.setBlockIds(new ArrayList<>());
+        localRecord.setContentHash(null);
+        replaceFile(backup, p, localRecord);
+        return 1;
+    }
+
+    private void adoptCloudVersion(Backup backup, CloudFile file, List<CompletableFuture<Void>> updates) {
+        if (!file.hasSourceAttributes()) {
+            return;
+        }
+        LocalRecord localRecord = localDataStore.getLocalRecord(backup, Paths.get(file.getName()));
+        if (localRecord == null || localRecord.getPack() != null
+                || (localRecord.getLastModifiedTime() == file.getSourceModifiedTime() && localRecord.getSize() == file.getSourceSize())) {
+            return;
+        }
+
+        localRecord.setLastModifiedTime(file.getSourceModifiedTime());
+        localRecord.setSize(file.getSourceSize());
+        localRecord.setCodec(file.getCodec());
+        localRecord.setBlockIds(new ArrayList<>());
+        localRecord.setContentHash(null);
+        updates.add(localDataStore.updateLocalRecord(backup, localRecord));
+    }
+
+    /*
+     * Whether the file in the cloud holds the current content of the local file. Files uploaded with their modified
+     * time and size in the metadata are compared on those. Older uploads that were stored uncompressed can still be
+     * matched on their Content-MD5, which costs a read of the local file but not an upload.
+     */
+    private static boolean isBackedUp(CloudFile file, Path p, BasicFileAttributes attributes) {
+        if (file.hasSourceAttributes()) {
+            return file.getSourceModifiedTime() == attributes.lastModifiedTime().toMillis()
+                    && file.getSourceSize() == attributes.size();
+        }
+        if (file.getCodec() != null || file.getContentMD5() == null || file.getSize() != attributes.size()) {
+            return false;
+        }
+
+        try (InputStream in = Files.newInputStream(p)) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                md5.update(buffer, 0, read);
+            }
+            return Base64.getEncoder().encodeToString(md5.digest()).equals(file.getContentMD5());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /*
+     * Returns the attributes of the regular file at the given path, or null if there isn't one.
+     */
+    private static BasicFileAttributes readAttributes(Path p) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /*
      * Checks the consistency of a backup against the local database for that backup:
      *  1) Are there files in the local database that are not visible on the filesystem? Remove from cloud!
      *  2) Are there files in the file system that are not in the local database? Upload to cloud!
      *  3) Do properties (file size, last modified, etc) of any file differ from the local database? Replace file in cloud!
      */
-    private void runConsistencyCheck(Backup backup) {
+    private void runConsistencyCheck(Backup backup, boolean journalIntact) {
         System.out.println("Performing consistency check for backup '" + backup.getBackupName() + "' in directory " + backup.getRootDirectoryString());
 
-        // check 1 - remove files from Cloud Storage which no longer exist on the file system
-        localDataStore
-                .getBackupRecords(backup)
-                .parallel()
-                .filter(record -> !Files.exists(record.getPath()))
-                .forEach(record -> removeFile(backup, record));
+        // directories an interrupted check already went through - their changes were queued, and are in the journal
+        Set<Path> checkedDirectories = journalIntact ? journal.getCheckedDirectories(backup) : Collections.emptySet();
+        if (checkedDirectories.isEmpty()) {
+            journal.checkStarted(backup);
+        } else {
+            System.out.println("Resuming the consistency check for backup '" + backup.getBackupName() + "', "
+                    + checkedDirectories.size() + " directories were already checked");
+        }
+
+        // directories whose summary still matches need no per-file checks at all
+        Map<String, DirectorySummary> summaries = localDataStore.getDirectorySummaries(backup);
+        Set<Path> unchangedDirectories = new HashSet<>();
+        List<ScannedDirectory> changedDirectories = new ArrayList<>();
+
+        // directories where we found something to upload or remove - these are not consistent until those tasks are
+        // done, so we don't store a summary for them yet and they will be checked again next time
+        Set<Path> pendingDirectories = new HashSet<>();
 
-        // checks 2 and 3 - looking for local file system changes that have not been uploaded yet
+        // checks 2 and 3 - looking for local file system changes that have not been uploaded yet. Directories are read
+        // in parallel, but the data store is not safe for concurrent use, so each directory is checked in turn, holding
+        // the backup so that the watcher's changes go in between directories rather than during one
         try {
-            Files.find(backup.getRootDirectory(), 10000, (path, attributes) -> attributes.isRegularFile())
-                    .parallel()
-                    .forEach(p -> checkFile(backup, p));
+            DirectoryScanner.scan(backup.getRootDirectory(), config.getScanParallelism(), directory -> {
+                awaitQueueRoom();
+                synchronized (backup) {
+                    DirectorySummary summary = summaries.get(directory.getPath().toString());
+                    if (journalIntact && summary != null && summary.matches(directory.getLastModifiedTime(), directory.getDigest())) {
+                        unchangedDirectories.add(directory.getPath());
+                        return;
+                    }
+
+                    changedDirectories.add(directory);
+                    if (checkedDirectories.contains(directory.getPath())) {
+                        // not consistent until the replayed tasks are done
+                        pendingDirectories.add(directory.getPath());
+                        return;
+                    }
+
+                    // the scan has already read each file's attributes, so nothing here touches the file system
+                    for (ScannedFile f : directory.getFiles()) {
+                        if (checkFile(backup, f.getPath(), f.getAttributes())) {
+                            pendingDirectories.add(directory.getPath());
+                        }
+                    }
+                    journal.directoryChecked(backup, directory.getPath());
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        // check 1 - remove files from Cloud Storage which no longer exist on the file system. Files in unchanged
+        // directories must still exist, and the paths come from the record index, so we don't load every record
+        for (String filePath : localDataStore.getRecordIndex(backup).getPaths()) {
+            Path p = Paths.get(filePath);
+            if (!unchangedDirectories.contains(p.getParent()) && !Files.exists(p)) {
+                awaitQueueRoom();
+                synchronized (backup) {
+                    removeFile(backup, p);
+                }
+                pendingDirectories.add(p.getParent());
+            }
+        }
+
+        updateDirectorySummaries(backup, summaries, unchangedDirectories, changedDirectories, pendingDirectories);
+        journal.checkComplete(backup);
+
         System.out.println("Consistency check for backup '" + backup.getBackupName() + "' in directory " + backup.getRootDirectoryString() + " is now complete");
     }
 
+    private void updateDirectorySummaries(Backup backup,
+                                          Map<String, DirectorySummary> summaries,
+                                          Set<Path> unchangedDirectories,
+                                          List<ScannedDirectory> changedDirectories,
+                                          Set<Path> pendingDirectories) {
+        Set<String> scannedDirectories = new HashSet<>();
+        unchangedDirectories.forEach(dir -> scannedDirectories.add(dir.toString()));
+
+        for (ScannedDirectory directory : changedDirectories) {
+            String directoryPath = directory.getPath().toString();
+            scannedDirectories.add(directoryPath);
+
+            String digest = directory.getDigest();
+            if (digest == null || pendingDirectories.contains(directory.getPath())) {
+                continue;
+            }
+
+            DirectorySummary summary = summaries.get(directoryPath);
+            if (summary == null) {
+                summary = new DirectorySummary(backup, directoryPath, directory.getLastModifiedTime(), digest);
+            } else {
+                summary.setLastModifiedTime(directory.getLastModifiedTime());
+                summary.setDigest(digest);
+            }
+            localDataStore.updateDirectorySummary(summary);
+        }
+
+        // forget about directories that no longer exist
+        summaries.values().stream()
+                .filter(summary -> !scannedDirectories.contains(summary.getDirectoryPath()))
+                .forEach(localDataStore::deleteDirectorySummary);
+    }
+
+    /*
+     * Checks every path the journal says was queued but never synced, which queues it again if it still needs it.
+     */
+    private void replayJournal(Backup backup) {
+        Set<Path> pendingPaths = journal.getPendingPaths(backup);
+        if (pendingPaths.isEmpty()) {
+            return;
+        }
+
+        System.out.println("Resuming " + pendingPaths.size() + " unfinished tasks for backup '" + backup.getBackupName() + "'");
+        for (Path p : pendingPaths) {
+            if (Files.isDirectory(p)) {
+                // a directory delete, but the directory has been created again since
+                rescanDirectory(backup, p);
+            } else {
+                awaitQueueRoom();
+                synchronized (backup) {
+                    if (Files.exists(p)) {
+                        checkFile(backup, p);
+                    } else {
+                        removeFile(backup, p);
+                    }
+                }
+            }
+            // any task still needed has been journalled again, so the entries from the last run are done with
+            journal.resumed(backup, p);
+        }
+    }
+
     private void startFolderWatcher(Backup backup) {
         try {
-            new WatchDir(backup.getRootDirectory(), true, (watchEvent, path) -> {
-                WatchEvent.Kind eventKind = watchEvent.kind();
-                if (eventKind == ENTRY_CREATE || eventKind == ENTRY_MODIFY) {
-                    checkFile(backup, path);
-                } else if (eventKind == ENTRY_DELETE) {
-                    // delete file from cloud storage / local DB
-                    removeFile(backup, path);
+            // events arrive already coalesced, so each path sees one net change per burst of activity
+            watcher.watch(backup.getRootDirectory(), new DirectoryWatcher.Listener() {
+                @Override
+                public void changed(WatchEvent.Kind<?> eventKind, Path path) {
+                    metrics.fileChanged();
+                    if (Files.isDirectory(path)) {
+                        // a directory moved (or copied) in comes with no events for the files in it. Modified
+                        // directories only mean one of their children changed, which has events of its own
+                        if (eventKind == ENTRY_CREATE) {
+                            checkDirectoryTree(backup, path);
+                        }
+                        return;
+                    }
+
+                    // the startup checks may still be running in the background
+                    synchronized (backup) {
+                        if (eventKind == ENTRY_CREATE || eventKind == ENTRY_MODIFY) {
+                            fileExists(backup, path);
+                            checkFile(backup, path);
+                        } else if (eventKind == ENTRY_DELETE) {
+                            // delete file from cloud storage / local DB
+                            fileDeleted(backup, path);
+                        }
+                    }
+                }
+
+                @Override
+                public void overflowed(Path directory) {
+                    rescanDirectory(backup, directory);
                 }
             });
         } catch (IOException e) {
@@ -113,54 +485,322 @@ public class BackupEngine {
         }
     }
 
-    private void checkFile(Backup backup, Path p) {
-        LocalRecord localRecord = localDataStore.getLocalRecord(backup, p);
-        if (localRecord == null) {
+    /*
+     * Brings the records for one part of the tree up to date with the file system, without needing any events for it -
+     * for when the watcher lost them, or when a directory delete was interrupted.
+     */
+    private void rescanDirectory(Backup backup, Path directory) {
+        // deletes first, so that files moved within the directory are matched up with where they came from
+        awaitQueueRoom();
+        synchronized (backup) {
+            List<LocalRecord> missing = new ArrayList<>();
+            for (LocalRecord record : localDataStore.getLocalRecordsUnder(backup, directory)) {
+                if (!Files.exists(record.getPath())) {
+                    missing.add(record);
+                }
+            }
+            if (!missing.isEmpty()) {
+                if (renames != null) {
+                    renames.deleted(backup, directory, missing);
+                } else {
+                    removeFiles(backup, directory, missing);
+                }
+            }
+        }
+
+        if (Files.isDirectory(directory)) {
+            checkDirectoryTree(backup, directory);
+        }
+    }
+
+    /*
+     * Returns true if the file needed to be uploaded or replaced.
+     */
+    private boolean checkFile(Backup backup, Path p) {
+        return checkFile(backup, p, null);
+    }
+
+    /*
+     * As above, with the attributes of the file as they were read by a scan, or null to read them now.
+     */
+    private boolean checkFile(Backup backup, Path p, BasicFileAttributes attributes) {
+        // the record index answers both questions from memory - we only load the record itself when it has changed
+        RecordIndex recordIndex = localDataStore.getRecordIndex(backup);
+        if (!recordIndex.contains(p)) {
             // we don't know about this file - we should add it to our upload list!
-            uploadNewFile(backup, p);
+            uploadNewFile(backup, p, attributes);
+            return true;
         } else {
             // we do know of this file, but we must ensure that the file system version matches
             // what we have in our database
-            if (!localRecord.matches(p)) {
+            boolean matches = attributes == null
+                    ? recordIndex.matches(p)
+                    : recordIndex.matches(p, attributes.lastModifiedTime().toMillis(), attributes.size());
+            if (!matches) {
                 // what we have recorded does not match with what the file is reporting,
                 // so we must delete the old file on Azure and replace it with this file
-                replaceFile(backup, p, localRecord);
+                LocalRecord localRecord = localDataStore.getLocalRecord(backup, p);
+                if (localRecord != null) {
+                    replaceFile(backup, p, localRecord);
+                }
+                return true;
             }
         }
+        return false;
     }
 
-    private void uploadNewFile(Backup backup, Path p) {
-        taskQueue.send(Task.create(Task.Type.UPLOAD_FILE, backup, p, () -> {
-            // on success, create new LocalRecord
-            LocalRecord.create(backup, p).ifPresent(record -> localDataStore.updateLocalRecord(backup, record));
+    private void uploadNewFile(Backup backup, Path p, BasicFileAttributes attributes) {
+        long detectedTime = System.nanoTime();
+        Optional<LocalRecord> created = attributes == null
+                ? LocalRecord.create(backup, p)
+                : Optional.of(LocalRecord.create(backup, p, attributes));
+        created.ifPresent(record -> {
+            Runnable onSuccess = () -> {
+                // on success, refresh the file properties and store the new LocalRecord
+                record.update(backup, p);
+                localDataStore.updateLocalRecord(backup, record).thenRun(() -> synced(backup, p, detectedTime));
+            };
+
+            LocalRecord movedFrom = renames == null ? null : renames.claim(backup, p, record.getSize(), record.getLastModifiedTime());
+            if (movedFrom != null) {
+                moveFile(backup, p, record, movedFrom, detectedTime);
+                return;
+            }
+
+            LocalRecord source = findDuplicate(record);
+            if (source != null) {
+                // the content of this file is already in the cloud, so copy it there rather than upload it again
+                send(Task.createCopy(backup, p, record, source, onSuccess));
+            } else {
+                send(Task.create(Task.Type.UPLOAD_FILE, backup, p, record, onSuccess));
+            }
+        });
+    }
+
+    /*
+     * The new file at the given path was moved from the file of the source record, so it takes over the cloud copy of
+     * that file rather than being uploaded.
+     */
+    private void moveFile(Backup backup, Path p, LocalRecord record, LocalRecord source, long detectedTime) {
+        System.out.println("Detected move of " + source.getPath() + " to " + p);
+        if (source.getPack() != null) {
+            // packed content is found by its place in the pack rather than by path, so only the record changes
+            record.setPack(source.getPack());
+            record.setPackOffset(source.getPackOffset());
+            record.setPackLength(source.getPackLength());
+            record.setContentHash(source.getContentHash());
+            record.setCodec(source.getCodec());
+            localDataStore.deleteLocalRecord(source);
+            localDataStore.updateLocalRecord(backup, record).thenRun(() -> metrics.changeSynced(detectedTime));
+            return;
+        }
+
+        send(Task.createCopy(backup, p, record, source, () -> {
+            record.update(backup, p);
+            localDataStore.updateLocalRecord(backup, record).thenRun(() -> synced(backup, p, detectedTime));
+
+            // the old copy is only removed once the new one is in place. This runs on an upload thread, which must
+            // not wait for room in the queue
+            sendFollowUp(createDeleteTask(backup, source));
         }));
     }
 
+    /*
+     * Looks for a file anywhere in the local data store whose uploaded content is the same as this file. We only pay
+     * for hashing the file when there is already content of exactly the same size in the cloud.
+     */
+    private LocalRecord findDuplicate(LocalRecord record) {
+        if (record.getSize() < DEDUPLICATION_THRESHOLD || !localDataStore.hasContentOfSize(record.getSize())) {
+            return null;
+        }
+        return ContentHash.of(record.getPath())
+                .map(localDataStore::getLocalRecordByContentHash)
+                .filter(source -> source.getSize() == record.getSize())
+                .orElse(null);
+    }
+
     private void replaceFile(Backup backup, Path p, LocalRecord localRecord) {
-        taskQueue.send(Task.create(Task.Type.REPLACE_FILE, backup, p, () -> {
+        // the existing record carries the block list of the previous upload, so only changed blocks are sent
+        long detectedTime = System.nanoTime();
+        send(Task.create(Task.Type.REPLACE_FILE, backup, p, localRecord, () -> {
             // on success, update existing LocalRecord
             localRecord.update(backup, p);
-            localDataStore.updateLocalRecord(backup, localRecord);
+            localDataStore.updateLocalRecord(backup, localRecord).thenRun(() -> synced(backup, p, detectedTime));
         }));
     }
 
+    /*
+     * A deleted file might be half of a move, so unless rename detection is off, its record (or the records under a
+     * deleted directory) are held back for a while in case a new file claims them.
+     */
+    private void fileDeleted(Backup backup, Path p) {
+        if (renames == null) {
+            removeFile(backup, p);
+            return;
+        }
+
+        LocalRecord localRecord = localDataStore.getLocalRecord(backup, p);
+        List<LocalRecord> records = localRecord != null
+                ? Collections.singletonList(localRecord)
+                : localDataStore.getLocalRecordsUnder(backup, p);
+        if (!records.isEmpty()) {
+            renames.deleted(backup, p, records);
+        }
+    }
+
+    /*
+     * A file that was deleted may be back at the same path before rename detection gives up on it, in which case its
+     * record must not be removed.
+     */
+    private void fileExists(Backup backup, Path p) {
+        if (renames != null) {
+            renames.release(backup, p);
+        }
+    }
+
+    /*
+     * Called with the records of a deleted path that no new file claimed, which are removed from the cloud after all.
+     */
+    private void removeUnclaimed(Backup backup, Path deletedPath, List<LocalRecord> records) {
+        synchronized (backup) {
+            // a file may have been put back at its path just as the window ended, so it is still backed up and only
+            // needs checking
+            List<LocalRecord> gone = new ArrayList<>();
+            for (LocalRecord record : records) {
+                if (Files.exists(record.getPath())) {
+                    checkFile(backup, record.getPath());
+                } else {
+                    gone.add(record);
+                }
+            }
+
+            if (gone.isEmpty()) {
+                return;
+            }
+            if (gone.size() == 1 && gone.get(0).getPath().equals(deletedPath)) {
+                removeFile(backup, gone.get(0));
+            } else {
+                removeFiles(backup, deletedPath, gone);
+            }
+        }
+    }
+
+    private void checkDirectoryTree(Backup backup, Path directory) {
+        try {
+            DirectoryScanner.scan(directory, config.getScanParallelism(), scanned -> {
+                awaitQueueRoom();
+                synchronized (backup) {
+                    scanned.getFiles().forEach(f -> {
+                        fileExists(backup, f.getPath());
+                        checkFile(backup, f.getPath(), f.getAttributes());
+                    });
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void removeFile(Backup backup, Path p) {
         LocalRecord localRecord = localDataStore.getLocalRecord(backup, p);
         if (localRecord == null) {
-            // something odd - we are trying to remove a file from the cloud that isn't in the local data store
-            // TODO handle this appropriately
+            // a deleted directory arrives as a single event for the directory itself
+            removeDirectory(backup, p);
         } else {
             removeFile(backup, localRecord);
         }
     }
 
+    /*
+     * Removes every file that was under a deleted directory with one task, which the cloud store sends as batched
+     * deletes. The records of the files that were removed are then deleted in a single commit.
+     */
+    private void removeDirectory(Backup backup, Path directory) {
+        List<LocalRecord> records = localDataStore.getLocalRecordsUnder(backup, directory);
+        if (records.isEmpty()) {
+            // nothing from here was ever backed up (or it has been removed already)
+            return;
+        }
+        removeFiles(backup, directory, records);
+    }
+
+    private void removeFiles(Backup backup, Path directory, List<LocalRecord> directoryRecords) {
+        List<LocalRecord> records = new ArrayList<>(directoryRecords);
+        long detectedTime = System.nanoTime();
+        int total = records.size();
+        send(Task.createDeleteAll(backup, directory, records, () -> {
+            // by now the list only holds the files that were removed from the cloud
+            localDataStore.deleteLocalRecords(backup, records).thenRun(() -> {
+                // if any are left, the journal keeps the directory so that a restart tries it again
+                if (records.size() == total) {
+                    synced(backup, directory, detectedTime);
+                }
+            });
+        }));
+    }
+
     /*
      * We have a LocalRecord for a file that no longer exists on the file system. We should
      * therefore remove the LocalRecord from the local data store, and also from Azure Storage.
      */
     private void removeFile(Backup backup, LocalRecord localRecord) {
-        taskQueue.send(Task.create(Task.Type.DELETE_FILE, backup, localRecord.getPath(), () -> {
-            localDataStore.deleteLocalRecord(localRecord);
-        }));
+        send(createDeleteTask(backup, localRecord));
+    }
+
+    private Task createDeleteTask(Backup backup, LocalRecord localRecord) {
+        long detectedTime = System.nanoTime();
+        return Task.create(Task.Type.DELETE_FILE, backup, localRecord.getPath(), localRecord, () -> {
+            localDataStore.deleteLocalRecord(localRecord).thenRun(() -> synced(backup, localRecord.getPath(), detectedTime));
+        });
+    }
+
+    /*
+     * Queues a task from a scan or the watcher. The watcher's tasks wait while the queue is full, but the startup checks
+     * hold the backup as they queue theirs, so they wait beforehand instead (see awaitQueueRoom).
+     */
+    private void send(Task task) {
+        task.setBackground(isBackground());
+        journalQueued(task);
+        taskQueue.send(task);
+    }
+
+    /*
+     * Called by the startup checks before they take hold of the backup, to wait for room for the tasks they find
+     * there. Waiting for it while holding the backup would hold up every live change to it (and the watcher thread).
+     */
+    private void awaitQueueRoom() {
+        if (isBackground()) {
+            taskQueue.awaitBackgroundRoom();
+        }
+    }
+
+    private static boolean isBackground() {
+        // the startup checks run at low priority when they run alongside the watcher (the scan's threads take their
+        // priority from the checks), so their tasks go behind those for live changes
+        return Thread.currentThread().getPriority() < Thread.NORM_PRIORITY;
+    }
+
+    /*
+     * Queues a task from the callback of another task, which must never wait (see TaskQueue).
+     */
+    private void sendFollowUp(Task task) {
+        journalQueued(task);
+        taskQueue.sendFollowUp(task);
+    }
+
+    private void journalQueued(Task task) {
+        // journalled first, so that the entry is written ahead of anything that follows from the task. It isn't waited
+        // for, so a crash can lose it (see TaskJournal for why that is safe)
+        journal.queued(task.getBackup(), task.getPath());
+        // a task dropped for a newer one of the same path is done with, and the newer one is journalled itself
+        task.setOnSuperseded(() -> journal.synced(task.getBackup(), task.getPath()));
+    }
+
+    /*
+     * Called once a change has been committed to the local data store.
+     */
+    private void synced(Backup backup, Path p, long detectedTime) {
+        journal.synced(backup, p);
+        metrics.changeSynced(detectedTime);
     }
 }
\ No newline at end of file
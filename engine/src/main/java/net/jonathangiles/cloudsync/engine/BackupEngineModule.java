@@ -1,23 +1,58 @@
 package net.jonathangiles.cloudsync.engine;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import net.jmob.guice.conf.core.ConfigurationModule;
 import net.jonathangiles.cloudsync.engine.cloud.CloudStore;
 import net.jonathangiles.cloudsync.engine.cloud.azure.AzureCloudStore;
+import net.jonathangiles.cloudsync.engine.cloud.simulated.SimulatedCloudStore;
 import net.jonathangiles.cloudsync.engine.db.DataStore;
 import net.jonathangiles.cloudsync.engine.db.jpa.JPADataStore;
+import net.jonathangiles.cloudsync.engine.db.log.LogDataStore;
 import net.jonathangiles.cloudsync.engine.util.config.Config;
 
+import javax.inject.Provider;
+import javax.inject.Singleton;
 import java.io.File;
 
 public class BackupEngineModule extends AbstractModule {
 
+    private final File configDirectory;
+
+    public BackupEngineModule() {
+        this(new File("./"));
+    }
+
+    /**
+     * Loads config.json from the given directory rather than the working directory.
+     */
+    public BackupEngineModule(File configDirectory) {
+        this.configDirectory = configDirectory;
+    }
+
     @Override protected void configure() {
         // loading the config.json file into the Config class, which can then be injected into relevant places
-        install(new ConfigurationModule().fromPath(new File("./")));
+        install(new ConfigurationModule().fromPath(configDirectory));
         requestInjection(Config.class);
+    }
+
+    // as with the cloud store, only the data store chosen in config.json is ever created
+    @Provides @Singleton
+    DataStore provideDataStore(Config config, Provider<JPADataStore> jpa, Provider<LogDataStore> log) {
+        switch (config.getDataStore()) {
+            case "jpa": return jpa.get();
+            case "log": return log.get();
+            default: throw new IllegalArgumentException("Unknown data store '" + config.getDataStore() + "'");
+        }
+    }
 
-        bind(CloudStore.class).to(AzureCloudStore.class);
-        bind(DataStore.class).to(JPADataStore.class);
+    // the cloud store is chosen in config.json, so only the one in use is ever created
+    @Provides @Singleton
+    CloudStore provideCloudStore(Config config, Provider<AzureCloudStore> azure, Provider<SimulatedCloudStore> simulated) {
+        switch (config.getCloudStore()) {
+            case "simulated": return simulated.get();
+            case "azure": return azure.get();
+            default: throw new IllegalArgumentException("Unknown cloud store '" + config.getCloudStore() + "'");
+        }
     }
-}
\ No newline at end of file
+}
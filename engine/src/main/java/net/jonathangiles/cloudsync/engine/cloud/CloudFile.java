@@ -0,0 +1,60 @@
+package net.jonathangiles.cloudsync.engine.cloud;
+
+import lombok.Getter;
+
+import java.util.Comparator;
+
+/**
+ * A file as it is listed by a {@link CloudStore}: the name it is stored under (the full path of the local file), and
+ * what the cloud knows about its content.
+ */
+@Getter
+public class CloudFile {
+
+    /**
+     * The order files are listed in. Cloud stores sort by the UTF-8 bytes of the name, which is Unicode code point
+     * order - not quite the order of {@link String#compareTo(String)}.
+     */
+    public static final Comparator<String> NAME_ORDER = (a, b) -> {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    };
+
+    private final String name;
+
+    // the size of the stored (possibly compressed) content
+    private final long size;
+
+    // base64 MD5 of the stored content, or null if the cloud doesn't have one
+    private final String contentMD5;
+
+    // the codec the stored content was compressed with, or null if it is stored as it is
+    private final String codec;
+
+    // the modified time and size of the local file when it was uploaded, or -1 if they weren't recorded
+    private final long sourceModifiedTime;
+    private final long sourceSize;
+
+    public CloudFile(String name, long size, String contentMD5, String codec, long sourceModifiedTime, long sourceSize) {
+        this.name = name;
+        this.size = size;
+        this.contentMD5 = contentMD5;
+        this.codec = codec;
+        this.sourceModifiedTime = sourceModifiedTime;
+        this.sourceSize = sourceSize;
+    }
+
+    public boolean hasSourceAttributes() {
+        return sourceModifiedTime >= 0 && sourceSize >= 0;
+    }
+}
@@ -1,14 +1,35 @@
 package net.jonathangiles.cloudsync.engine.cloud;
 
 import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
 
 import java.nio.file.Path;
+import java.util.Iterator;
 
 public interface CloudStore {
 
     void createContainer(Backup backup);
 
-    void uploadFile(Backup backup, Path p, Runnable onSuccess);
+    /**
+     * Uploads the file at the given path. Any blocks listed on the record from a previous upload may be reused, and the
+     * record is updated with the new block list before onSuccess is run.
+     */
+    void uploadFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess);
 
-    void removeFile(Backup backup, Path p, Runnable onSuccess);
+    /**
+     * Makes a server-side copy of the cloud copy of the source record into the given path. The record takes on the
+     * content hash and block list of the source before onSuccess is run.
+     */
+    void copyFile(Backup backup, Path p, LocalRecord record, LocalRecord source, Runnable onSuccess);
+
+    /**
+     * Removes the cloud copy of the file at the given path. The record (if there is one) says where that copy lives.
+     */
+    void removeFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess);
+
+    /**
+     * Lists the files held in the cloud for the backup, in {@link CloudFile#NAME_ORDER}. Results are fetched a page at
+     * a time as the iterator is used, and an {@link IllegalStateException} is thrown if the listing can't be completed.
+     */
+    Iterator<CloudFile> listFiles(Backup backup);
 }
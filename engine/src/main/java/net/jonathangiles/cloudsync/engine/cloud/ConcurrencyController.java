@@ -0,0 +1,289 @@
+package net.jonathangiles.cloudsync.engine.cloud;
+
+import io.reactivex.Flowable;
+import io.reactivex.FlowableSubscriber;
+import net.jonathangiles.cloudsync.engine.util.Task;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Decides how many tasks a cloud store runs at once, using an AIMD (additive increase, multiplicative decrease) scheme:
+ * <ul>
+ *     <li>while every permit is in use, request latency holds near its baseline and throughput is not getting worse,
+ *     the limit goes up by one each {@link #WINDOW}</li>
+ *     <li>if latency climbs well above the baseline without a matching rise in throughput (the link is saturated, and
+ *     uploads are just starving each other) the limit comes down by one</li>
+ *     <li>if any request is throttled or times out, the limit is halved</li>
+ * </ul>
+ *
+ * <p>The cloud store feeds in its request latencies and throttling responses, and tasks are taken from the task queue
+ * only as permits become free, so the backlog stays in the (bounded) task queue.
+ */
+public class ConcurrencyController implements ConcurrencyControllerMXBean {
+
+    // how often the limit is reconsidered
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    // latency may rise this far above the baseline before it counts as queueing rather than noise
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // each window, the baseline latency drifts up by this much, so it can follow a link that has got slower
+    private static final double BASELINE_DRIFT = 1.01;
+
+    // throughput has to fall by more than this to count as getting worse
+    private static final double THROUGHPUT_TOLERANCE = 0.95;
+
+    // every task costs at least this much in throughput terms, so that a window of small files isn't seen as idle
+    private static final long MIN_TASK_BYTES = 64 * 1024;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private int limit;
+    private int inFlight;
+
+    // requested from the task queue but not yet delivered
+    private long outstanding;
+    private Subscription subscription;
+
+    // the current window
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private long windowRequests;
+    private long windowLatency;
+    private long windowThrottles;
+    private long windowTasks;
+    private boolean windowSaturated;
+
+    // the previous windows
+    private double throughput;
+    private double latency;
+    private double baselineLatency = Double.MAX_VALUE;
+
+    private long increases;
+    private long decreases;
+    private long backoffs;
+    private volatile String lastDecision;
+
+    public ConcurrencyController(String name, int initialLimit, int minLimit, int maxLimit) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.lastDecision = "starting at " + limit;
+    }
+
+    /**
+     * Subscribes to the tasks, running each one on the executor with the given action, with no more than the current
+     * limit of them running at once.
+     */
+    public void dispatch(Flowable<Task> tasks, Executor executor, Consumer<Task> action) {
+        dispatchAsync(tasks, task -> CompletableFuture.runAsync(() -> action.accept(task), executor));
+    }
+
+    /**
+     * Subscribes to the tasks, starting each one with the given action, with no more than the current limit of them
+     * unfinished at once. A task holds its permit until the stage returned for it completes, so the action can start
+     * non-blocking work and return without tying up a thread while it is in flight.
+     */
+    public void dispatchAsync(Flowable<Task> tasks, Function<Task, CompletionStage<?>> action) {
+        tasks.subscribe(new FlowableSubscriber<Task>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                synchronized (ConcurrencyController.this) {
+                    subscription = s;
+                }
+                requestMore();
+            }
+
+            @Override
+            public void onNext(Task task) {
+                synchronized (ConcurrencyController.this) {
+                    outstanding--;
+                    inFlight++;
+                    if (inFlight >= limit) {
+                        windowSaturated = true;
+                    }
+                }
+                CompletionStage<?> stage;
+                try {
+                    stage = action.apply(task);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    taskFinished(task);
+                    return;
+                }
+                stage.whenComplete((result, e) -> {
+                    if (e != null) {
+                        e.printStackTrace();
+                    }
+                    taskFinished(task);
+                });
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                t.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    /**
+     * Called by the cloud store as each request to the cloud completes.
+     */
+    public void requestCompleted(long nanos) {
+        synchronized (this) {
+            windowRequests++;
+            windowLatency += nanos;
+            maybeAdjust();
+        }
+        requestMore();
+    }
+
+    /**
+     * Called by the cloud store when a request is throttled (e.g. 503 Server Busy) or times out.
+     */
+    public synchronized void throttled() {
+        windowThrottles++;
+        maybeAdjust();
+    }
+
+    private void taskFinished(Task task) {
+        synchronized (this) {
+            inFlight--;
+            windowTasks++;
+            long bytes = task.getType() == Task.Type.UPLOAD_FILE || task.getType() == Task.Type.REPLACE_FILE ?
+                    task.getRecord().getSize() : 0;
+            windowBytes += Math.max(bytes, MIN_TASK_BYTES);
+            maybeAdjust();
+        }
+        requestMore();
+    }
+
+    private void maybeAdjust() {
+        long now = System.nanoTime();
+        // throughput is only known once a task has finished, so a window of nothing but long uploads is extended -
+        // unless there was throttling, which is always acted on straight away
+        if (now - windowStart >= WINDOW && (windowTasks > 0 || windowThrottles > 0)) {
+            adjust(now);
+        }
+    }
+
+    private void adjust(long now) {
+        double seconds = (now - windowStart) / 1e9;
+        double windowThroughput = windowBytes / seconds;
+        double windowMeanLatency = windowRequests == 0 ? latency : windowLatency / (double) windowRequests;
+        baselineLatency = Math.min(windowMeanLatency, baselineLatency * BASELINE_DRIFT);
+
+        int previousLimit = limit;
+        String decision;
+        if (windowThrottles > 0) {
+            limit = Math.max(minLimit, limit / 2);
+            backoffs++;
+            decision = windowThrottles + " requests throttled, backing off";
+        } else if (windowMeanLatency > baselineLatency * LATENCY_TOLERANCE && windowThroughput < throughput / THROUGHPUT_TOLERANCE) {
+            limit = Math.max(minLimit, limit - 1);
+            decision = "latency up to " + millis(windowMeanLatency) + "ms from " + millis(baselineLatency) + "ms without more throughput";
+        } else if (windowSaturated && windowMeanLatency <= baselineLatency * LATENCY_TOLERANCE && windowThroughput >= throughput * THROUGHPUT_TOLERANCE) {
+            limit = Math.min(maxLimit, limit + 1);
+            decision = "all permits in use, latency holding at " + millis(windowMeanLatency) + "ms";
+        } else {
+            decision = "holding";
+        }
+
+        if (limit > previousLimit) {
+            increases++;
+        } else if (limit < previousLimit) {
+            decreases++;
+        }
+        if (limit != previousLimit) {
+            System.out.println(name + " concurrency " + previousLimit + " -> " + limit + ": " + decision);
+        }
+        lastDecision = decision + " (limit " + limit + ")";
+
+        throughput = windowThroughput;
+        latency = windowMeanLatency;
+        windowStart = now;
+        windowBytes = 0;
+        windowRequests = 0;
+        windowLatency = 0;
+        windowThrottles = 0;
+        windowTasks = 0;
+        windowSaturated = inFlight >= limit;
+    }
+
+    // tops the requests to the task queue up to the current limit
+    private void requestMore() {
+        Subscription s;
+        long n;
+        synchronized (this) {
+            n = limit - inFlight - outstanding;
+            if (subscription == null || n <= 0) {
+                return;
+            }
+            outstanding += n;
+            s = subscription;
+        }
+        s.request(n);
+    }
+
+    private static long millis(double nanos) {
+        return Math.round(nanos / 1e6);
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    @Override
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    @Override
+    public synchronized long getBackoffs() {
+        return backoffs;
+    }
+
+    @Override
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    @Override
+    public synchronized double getThroughputBytesPerSecond() {
+        return throughput;
+    }
+
+    @Override
+    public synchronized double getRequestLatencyMillis() {
+        return latency / 1e6;
+    }
+
+    @Override
+    public synchronized double getBaselineLatencyMillis() {
+        return baselineLatency == Double.MAX_VALUE ? 0 : baselineLatency / 1e6;
+    }
+}
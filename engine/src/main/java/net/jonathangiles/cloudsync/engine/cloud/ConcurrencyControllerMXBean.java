@@ -0,0 +1,28 @@
+package net.jonathangiles.cloudsync.engine.cloud;
+
+public interface ConcurrencyControllerMXBean {
+
+    /**
+     * How many tasks may currently be in flight at once.
+     */
+    int getLimit();
+
+    int getInFlight();
+
+    long getIncreases();
+
+    long getDecreases();
+
+    long getBackoffs();
+
+    /**
+     * The reason for the most recent decision, whether or not it changed the limit.
+     */
+    String getLastDecision();
+
+    double getThroughputBytesPerSecond();
+
+    double getRequestLatencyMillis();
+
+    double getBaselineLatencyMillis();
+}
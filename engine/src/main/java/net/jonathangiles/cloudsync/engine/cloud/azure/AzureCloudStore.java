@@ -1,41 +1,213 @@
 package net.jonathangiles.cloudsync.engine.cloud.azure;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.StorageEvent;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import net.jonathangiles.cloudsync.engine.cloud.CloudFile;
 import net.jonathangiles.cloudsync.engine.cloud.CloudStore;
+import net.jonathangiles.cloudsync.engine.cloud.ConcurrencyController;
+import net.jonathangiles.cloudsync.engine.cloud.azure.nio.AsyncBlobClient;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codec;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codecs;
+import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
 import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.model.Pack;
+import net.jonathangiles.cloudsync.engine.util.ContentHash;
+import net.jonathangiles.cloudsync.engine.util.KeyedTaskExecutor;
 import net.jonathangiles.cloudsync.engine.util.Task;
 import net.jonathangiles.cloudsync.engine.util.TaskQueue;
 import net.jonathangiles.cloudsync.engine.util.config.Config;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ExecutorService;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class AzureCloudStore implements CloudStore {
 
-    private static final String BACKUP_CONTAINER_KEY = "BACKUP_CONTAINER";
+    private static final long COPY_POLL_INTERVAL = 500;
+
+    private static final long PACK_COMPACTION_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    // the most threads doing blocking work (large, delta, copy and pack uploads) at once
+    private static final int MAX_BLOCKING_THREADS = 64;
+
+    private static final long ASYNC_REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    // how many batch delete requests a task that removes many files keeps in flight
+    private static final int DELETE_BATCH_LANES = 4;
+
+    // blob metadata key naming the codec the blob content was compressed with
+    static final String CODEC_METADATA_KEY = "codec";
+
+    // blob metadata keys holding the modified time and size of the local file the blob was uploaded from, so that a
+    // listing of the container shows whether a local file is already backed up
+    static final String SOURCE_MODIFIED_METADATA_KEY = "sourcemodified";
+    static final String SOURCE_SIZE_METADATA_KEY = "sourcesize";
 
     // azure
     private final CloudBlobClient serviceClient;
 
+    // the container of each backup, keyed by backup id. The data store may hand out records with a Backup instance of
+    // their own (JPA does after a rollback), so the container isn't kept on the Backup
+    private final Map<Long, CloudBlobContainer> containers = new ConcurrentHashMap<>();
+
     // subscribe to task events
     private final TaskQueue taskQueue;
 
-    private final ExecutorService azureExecutor = Executors.newFixedThreadPool(5);
+    private final Metrics metrics;
+
+    // threads are created as the concurrency controller allows more blocking tasks to run at once, and time out when
+    // it backs off
+    private final ThreadPoolExecutor azureExecutor;
+    private final ConcurrencyController concurrency;
+
+    // tasks for the same path run in order, and stale uploads are dropped
+    private final KeyedTaskExecutor ordered;
+
+    // the concurrency permit of each task that has been taken from the queue, which is given back once the task no
+    // longer ties up a thread or a request (see run)
+    private final Map<Task, CompletableFuture<Void>> permits = new ConcurrentHashMap<>();
+
+    // batched deletes always go through the non-blocking client, and small uploads and deletes do too when async
+    // uploads are enabled. Null if it could not be created
+    private final AsyncBlobClient asyncClient;
+    private final boolean asyncUploads;
+    private final long asyncUploadThreshold;
+
+    private final DeltaUploader deltaUploader = new DeltaUploader();
+    private final LargeFileUploader largeFileUploader;
+    private final long largeFileThreshold;
+
+    // null if uploads are not compressed
+    private final Codec preferredCodec;
+
+    // small file packing - one pack writer per backup, keyed by backup id
+    private final DataStore dataStore;
+    private final boolean packSmallFiles;
+    private final long packFileThreshold;
+    private final long packSize;
+    private final Map<Long, PackWriter> packWriters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService packScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "azure-packs");
+        t.setDaemon(true);
+        return t;
+    });
 
     @Inject
-    public AzureCloudStore(TaskQueue taskQueue, Config config) {
+    public AzureCloudStore(TaskQueue taskQueue, DataStore dataStore, Config config, Metrics metrics) {
         this.taskQueue = taskQueue;
-        this.taskQueue.toObserverable().subscribe(this::process);
+        this.metrics = metrics;
+        this.dataStore = dataStore;
+        this.largeFileThreshold = config.getLargeFileThreshold();
+        this.preferredCodec = Codecs.forName(config.getCompression());
+        this.largeFileUploader = new LargeFileUploader(config.getLargeFileUploadThreads(), config.getLargeFileMaxInFlightBytes());
+        this.packSmallFiles = config.isPackSmallFiles();
+        this.packFileThreshold = config.getPackFileThreshold();
+        this.packSize = config.getPackSize();
+        this.concurrency = new ConcurrencyController("Upload", config.getUploadConcurrency(),
+                config.getMinUploadConcurrency(), config.getMaxUploadConcurrency());
+        metrics.addComponent("type=Concurrency,name=Uploads", concurrency);
+        this.ordered = new KeyedTaskExecutor(this::run, metrics::taskSuperseded);
+
+        int blockingThreads = Math.min(config.getMaxUploadConcurrency(), MAX_BLOCKING_THREADS);
+        this.azureExecutor = new ThreadPoolExecutor(blockingThreads, blockingThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.azureExecutor.allowCoreThreadTimeOut(true);
+
+        this.asyncUploadThreshold = Math.min(config.getAsyncUploadThreshold(), DeltaUploader.DELTA_UPLOAD_THRESHOLD);
+        this.asyncUploads = config.isAsyncUploads();
+        AsyncBlobClient _asyncClient = null;
+        try {
+            // without async uploads, the client only sends batched deletes, which one thread keeps up with
+            _asyncClient = new AsyncBlobClient(config.getAzureAccountName(), config.getAzureAccountKey(),
+                    asyncUploads ? config.getAsyncIoThreads() : 1, ASYNC_REQUEST_TIMEOUT, new AsyncBlobClient.Listener() {
+                @Override
+                public void requestCompleted(long nanos) {
+                    metrics.requestCompleted(nanos);
+                    concurrency.requestCompleted(nanos);
+                }
+
+                @Override
+                public void requestRetried() {
+                    metrics.requestRetried();
+                    concurrency.throttled();
+                }
+            });
+        } catch (IOException e) {
+            // carry on with every request going through the storage client
+            e.printStackTrace();
+        }
+        asyncClient = _asyncClient;
+
+        if (packSmallFiles) {
+            long flushInterval = config.getPackFlushInterval();
+            packScheduler.scheduleWithFixedDelay(() -> packWriters.values().forEach(w -> w.flushIfOlderThan(flushInterval)),
+                    flushInterval, Math.max(1, flushInterval / 2), TimeUnit.MILLISECONDS);
+            packScheduler.scheduleWithFixedDelay(() -> packWriters.values().forEach(PackWriter::compact),
+                    PACK_COMPACTION_INTERVAL, PACK_COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        // every request the storage client makes (including each block of a large file, and each retry) is timed
+        OperationContext.getGlobalRequestCompletedEventHandler().addListener(new StorageEvent<RequestCompletedEvent>() {
+            @Override
+            public void eventOccurred(RequestCompletedEvent event) {
+                RequestResult result = event.getRequestResult();
+                if (result.getStartDate() != null && result.getStopDate() != null) {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(result.getStopDate().getTime() - result.getStartDate().getTime());
+                    metrics.requestCompleted(nanos);
+                    concurrency.requestCompleted(nanos);
+                }
+            }
+        });
+        // the client retries requests that were throttled (503 Server Busy), failed on the server or timed out
+        OperationContext.getGlobalRetryingEventHandler().addListener(new StorageEvent<RetryingEvent>() {
+            @Override
+            public void eventOccurred(RetryingEvent event) {
+                metrics.requestRetried();
+                concurrency.throttled();
+            }
+        });
 
         CloudBlobClient _serviceClient = null;
         try {
@@ -53,6 +225,11 @@ public class AzureCloudStore implements CloudStore {
             System.exit(-1);
         }
         serviceClient = _serviceClient;
+
+        // tasks are only taken from the task queue as the concurrency controller allows, so that the backlog stays
+        // in the (bounded) task queue rather than in the executor. This comes last, as processing a task needs the
+        // service client and everything else above
+        concurrency.dispatchAsync(this.taskQueue.toFlowable(), this::process);
     }
 
     @Override
@@ -61,7 +238,12 @@ public class AzureCloudStore implements CloudStore {
             // Container name must be lower case and should obviously be unique
             CloudBlobContainer container = serviceClient.getContainerReference(backup.getBackupName());
             container.createIfNotExists();
-            backup.getRuntimeProperties().put(BACKUP_CONTAINER_KEY, container);
+            containers.put(backup.getId(), container);
+
+            if (packSmallFiles) {
+                // create the pack writer up front, so that compaction covers this backup's packs from the start
+                getPackWriter(backup);
+            }
         } catch (URISyntaxException e) {
             e.printStackTrace();
             System.exit(-1);
@@ -73,48 +255,478 @@ public class AzureCloudStore implements CloudStore {
     }
 
     @Override
-    public void uploadFile(Backup backup, Path p, Runnable onSuccess) {
-        azureExecutor.submit(() -> {
-            try {
-                System.out.println("Uploading file " + p);
-                CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
-                blob.upload(Files.newInputStream(p), Files.size(p));
-                if (onSuccess != null) {
-                    onSuccess.run();
-                }
-                System.out.println("Uploading complete for " + p);
-            } catch (Exception e) {
+    public void uploadFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        azureExecutor.submit(() -> doUploadFile(backup, p, record, onSuccess));
+    }
+
+    @Override
+    public void copyFile(Backup backup, Path p, LocalRecord record, LocalRecord source, Runnable onSuccess) {
+        azureExecutor.submit(() -> doCopyFile(backup, p, record, source, onSuccess));
+    }
+
+    @Override
+    public void removeFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        azureExecutor.submit(() -> doRemoveFile(backup, p, record, onSuccess));
+    }
+
+    @Override
+    public Iterator<CloudFile> listFiles(Backup backup) {
+        return new BlobListing(getContainer(backup));
+    }
+
+    /*
+     * Called for each task taken from the task queue. The task keeps its concurrency permit until the returned stage
+     * completes, including while it waits behind an earlier task for the same path.
+     */
+    private CompletionStage<?> process(Task task) {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        permits.put(task, permit);
+        ordered.submit(task).whenComplete((result, e) -> releasePermit(task));
+        return permit;
+    }
+
+    private void releasePermit(Task task) {
+        CompletableFuture<Void> permit = permits.remove(task);
+        if (permit != null) {
+            permit.complete(null);
+        }
+    }
+
+    /*
+     * Starts a task once nothing else is running for its path, returning a stage that completes once the change is in
+     * the cloud - only then can the next task for the path start. Blocking work runs on an azure executor thread, while
+     * small uploads and deletes are sent by the non-blocking client without holding a thread while they are in flight.
+     */
+    private CompletionStage<?> run(Task task) {
+        metrics.taskStarted(task);
+        CompletableFuture<Boolean> result;
+        if (isAsync(task)) {
+            result = processAsync(task);
+        } else {
+            CompletableFuture<CompletableFuture<Boolean>> started = CompletableFuture.supplyAsync(() -> processBlocking(task), azureExecutor);
+
+            // a packed file waits in the pack writer until its pack is uploaded, which can take a while. Its path stays
+            // held until then, but it needs no thread or request meanwhile, so it gives its permit back for other tasks
+            started.whenComplete((r, e) -> releasePermit(task));
+            result = started.thenCompose(r -> r);
+        }
+        return result.handle((succeeded, e) -> {
+            if (e != null) {
                 e.printStackTrace();
             }
+            metrics.taskFinished(task, e == null && succeeded);
+            return null;
         });
     }
 
-    @Override
-    public void removeFile(Backup backup, Path p, Runnable onSuccess) {
-        azureExecutor.submit(() -> {
-            try {
-                System.out.println("Deleting file " + p);
-                CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
-                blob.delete();
-                if (onSuccess != null) {
-                    onSuccess.run();
+    /*
+     * Returns a future that is already complete, other than for files handed to the pack writer.
+     */
+    private CompletableFuture<Boolean> processBlocking(Task task) {
+        switch (task.getType()) {
+            case UPLOAD_FILE:
+            case REPLACE_FILE: return doUploadFile(task.getBackup(), task.getPath(), task.getRecord(), task.getRunnable());
+            case COPY_FILE: return doCopyFile(task.getBackup(), task.getPath(), task.getRecord(), task.getSource(), task.getRunnable());
+            case DELETE_FILE: return CompletableFuture.completedFuture(doRemoveFile(task.getBackup(), task.getPath(), task.getRecord(), task.getRunnable()));
+            case DELETE_FILES: return CompletableFuture.completedFuture(doRemoveFiles(task));
+            default: return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /*
+     * Small files that are uploaded in one request, and deletes of blobs of their own, can go through the non-blocking
+     * client. Everything else - packed files, delta and large uploads, and copies - needs the storage client.
+     */
+    private boolean isAsync(Task task) {
+        if (task.getType() == Task.Type.DELETE_FILES) {
+            return asyncClient != null;
+        }
+        if (!asyncUploads || asyncClient == null || task.getRecord() == null || task.getRecord().getPack() != null) {
+            return false;
+        }
+        switch (task.getType()) {
+            case UPLOAD_FILE:
+            case REPLACE_FILE:
+                try {
+                    long size = Files.size(task.getPath());
+                    return size <= asyncUploadThreshold && !(packSmallFiles && size <= packFileThreshold);
+                } catch (IOException e) {
+                    // the blocking path reports the problem
+                    return false;
+                }
+            case DELETE_FILE: return true;
+            default: return false;
+        }
+    }
+
+    private CompletableFuture<Boolean> processAsync(Task task) {
+        if (task.getType() == Task.Type.DELETE_FILES) {
+            return removeFilesAsync(task);
+        }
+
+        Backup backup = task.getBackup();
+        Path p = task.getPath();
+        URI blob;
+        try {
+            blob = getContainer(backup).getBlockBlobReference(p.toString()).getUri();
+        } catch (URISyntaxException | StorageException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        if (task.getType() == Task.Type.DELETE_FILE) {
+            System.out.println("Deleting file " + p);
+            return asyncClient.deleteBlob(blob).thenApplyAsync(v -> {
+                if (task.getRunnable() != null) {
+                    task.getRunnable().run();
                 }
                 System.out.println("Deleting complete for " + p);
-            } catch (Exception e) {
+                return true;
+            }, azureExecutor);
+        }
+
+        System.out.println("Uploading file " + p);
+        LocalRecord record = task.getRecord();
+        MessageDigest digest = ContentHash.newDigest();
+        Map<String, String> metadata = new HashMap<>();
+        String[] codecName = new String[1];
+        try {
+            putSourceMetadata(metadata, Files.readAttributes(p, BasicFileAttributes.class));
+        } catch (IOException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return readFile(p).thenCompose(content -> {
+            digest.update(content);
+
+            // already compressed content is uploaded as it is
+            Codec codec = Codecs.select(preferredCodec, content, content.length);
+            codecName[0] = Codecs.getName(codec);
+            if (codec != null) {
+                metadata.put(CODEC_METADATA_KEY, codecName[0]);
+                try {
+                    content = Codecs.compress(codec, content, 0, content.length);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return asyncClient.putBlob(blob, content, metadata);
+        }).thenApplyAsync(v -> {
+            record.setBlockIds(new ArrayList<>());
+            record.setContentHash(ContentHash.toString(digest));
+            record.setCodec(codecName[0]);
+            if (task.getRunnable() != null) {
+                task.getRunnable().run();
+            }
+            System.out.println("Uploading complete for " + p);
+            return true;
+        }, azureExecutor);
+    }
+
+    /*
+     * Deletes the blobs of many files with Blob Batch requests, a few batches at a time. Packed files are released from
+     * their packs instead. The task's record list is cut down to the files that were removed before its runnable is
+     * run, and the task only succeeds if all of them were.
+     */
+    private CompletableFuture<Boolean> removeFilesAsync(Task task) {
+        Backup backup = task.getBackup();
+        List<LocalRecord> records = task.getRecords();
+        System.out.println("Deleting " + records.size() + " files under " + task.getPath());
+
+        Map<URI, LocalRecord> blobs = new HashMap<>();
+        List<LocalRecord> packed = new ArrayList<>();
+        List<List<URI>> batches = new ArrayList<>();
+        try {
+            for (LocalRecord record : records) {
+                if (record.getPack() != null) {
+                    packed.add(record);
+                    continue;
+                }
+                URI blob = getContainer(backup).getBlockBlobReference(record.getFilePath()).getUri();
+                blobs.put(blob, record);
+                if (batches.isEmpty() || batches.get(batches.size() - 1).size() == AsyncBlobClient.MAX_BATCH_SIZE) {
+                    batches.add(new ArrayList<>());
+                }
+                batches.get(batches.size() - 1).add(blob);
+            }
+        } catch (URISyntaxException | StorageException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        // records are compared by identity - their equals takes in the whole backup
+        Set<LocalRecord> removed = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+        Iterator<List<URI>> remaining = batches.iterator();
+        CompletableFuture<?>[] lanes = new CompletableFuture<?>[DELETE_BATCH_LANES];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = deleteBatches(remaining, blobs, removed);
+        }
+
+        return CompletableFuture.allOf(lanes).thenApplyAsync(v -> finishRemoveFiles(task, packed, removed), azureExecutor);
+    }
+
+    /*
+     * Sends the remaining batches one after another, so that a few lanes of these share the work.
+     */
+    private CompletableFuture<Void> deleteBatches(Iterator<List<URI>> remaining, Map<URI, LocalRecord> blobs, Set<LocalRecord> removed) {
+        List<URI> batch;
+        synchronized (remaining) {
+            if (!remaining.hasNext()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            batch = remaining.next();
+        }
+
+        return asyncClient.deleteBlobs(serviceClient.getEndpoint(), batch)
+                .thenAccept(deleted -> deleted.forEach(blob -> removed.add(blobs.get(blob))))
+                .exceptionally(e -> {
+                    // these files stay recorded, so the next consistency check tries them again
+                    e.printStackTrace();
+                    return null;
+                })
+                .thenCompose(v -> deleteBatches(remaining, blobs, removed));
+    }
+
+    /*
+     * Without the non-blocking client, each blob is deleted with a request of its own.
+     */
+    private boolean doRemoveFiles(Task task) {
+        Backup backup = task.getBackup();
+        System.out.println("Deleting " + task.getRecords().size() + " files under " + task.getPath());
+
+        List<LocalRecord> packed = new ArrayList<>();
+        Set<LocalRecord> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (LocalRecord record : task.getRecords()) {
+            if (record.getPack() != null) {
+                packed.add(record);
+                continue;
+            }
+            try {
+                getContainer(backup).getBlockBlobReference(record.getFilePath()).deleteIfExists();
+                removed.add(record);
+            } catch (URISyntaxException | StorageException e) {
                 e.printStackTrace();
             }
-        });
+        }
+        return finishRemoveFiles(task, packed, removed);
     }
 
-    private void process(Task task) {
-        switch (task.getType()) {
-            case UPLOAD_FILE:
-            case REPLACE_FILE: uploadFile(task.getBackup(), task.getPath(), task.getRunnable()); break;
-            case DELETE_FILE: removeFile(task.getBackup(), task.getPath(), task.getRunnable()); break;
+    private boolean finishRemoveFiles(Task task, List<LocalRecord> packed, Set<LocalRecord> removed) {
+        // packed files are tombstoned rather than deleted, as they are one at a time
+        removed.addAll(packed);
+        List<LocalRecord> records = task.getRecords();
+        int total = records.size();
+        records.removeIf(record -> !removed.contains(record));
+
+        if (task.getRunnable() != null) {
+            task.getRunnable().run();
+        }
+        packed.forEach(record -> getPackWriter(task.getBackup()).release(record.getPack(), record.getPackLength()));
+        System.out.println("Deleting complete for " + records.size() + " of " + total + " files under " + task.getPath());
+        return records.size() == total;
+    }
+
+    /*
+     * Reads the whole of a (small) file without blocking a thread on the disk.
+     */
+    private static CompletableFuture<byte[]> readFile(Path p) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(p, StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer n, ByteBuffer b) {
+                    if (n >= 0 && b.hasRemaining()) {
+                        channel.read(b, b.position(), b, this);
+                        return;
+                    }
+                    close();
+                    future.complete(b.hasRemaining() ? Arrays.copyOf(b.array(), b.position()) : b.array());
+                }
+
+                @Override
+                public void failed(Throwable e, ByteBuffer b) {
+                    close();
+                    future.completeExceptionally(e);
+                }
+
+                private void close() {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
+
+    /*
+     * The do* methods return true if the change was made. Uploads and copies return a future instead, as a packed file
+     * is only in the cloud once the pack writer has uploaded its pack.
+     */
+    private CompletableFuture<Boolean> doUploadFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+            long size = attributes.size();
+            MessageDigest digest = ContentHash.newDigest();
+            if (packSmallFiles && size <= packFileThreshold) {
+                // onSuccess is run by the pack writer, once the pack holding this file has been uploaded
+                System.out.println("Packing file " + p);
+                byte[] content = Files.readAllBytes(p);
+                digest.update(content);
+                Codec codec = Codecs.select(preferredCodec, content, content.length);
+                if (codec != null) {
+                    content = Codecs.compress(codec, content, 0, content.length);
+                }
+                boolean replacingBlob = record.getId() != null && record.getPack() == null;
+                return getPackWriter(backup).add(record, content, ContentHash.toString(digest), Codecs.getName(codec), replacingBlob, onSuccess);
+            }
+
+            System.out.println("Uploading file " + p);
+            CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
+
+            // already compressed content is uploaded as it is
+            Codec codec = Codecs.select(preferredCodec, p);
+            String codecName = Codecs.getName(codec);
+            if (codec != null) {
+                blob.getMetadata().put(CODEC_METADATA_KEY, codecName);
+            }
+            putSourceMetadata(blob.getMetadata(), attributes);
+
+            // blocks can only be reused if they were compressed the same way
+            List<String> previousBlockIds = Objects.equals(codecName, record.getCodec()) ? record.getBlockIds() : Collections.emptyList();
+            if (size > largeFileThreshold) {
+                // large files are split into blocks that are uploaded in parallel
+                record.setBlockIds(largeFileUploader.upload(blob, p, previousBlockIds, digest, codec));
+            } else if (size > DeltaUploader.DELTA_UPLOAD_THRESHOLD) {
+                // only the blocks that changed since the last upload of this file are sent
+                record.setBlockIds(deltaUploader.upload(blob, p, previousBlockIds, digest, codec));
+            } else {
+                try (InputStream in = new DigestInputStream(Files.newInputStream(p), digest)) {
+                    if (codec == null) {
+                        blob.upload(in, size);
+                    } else {
+                        // streamed, as the compressed size isn't known up front and the file may be a block or more
+                        Codecs.compress(codec, in, blob.openOutputStream());
+                    }
+                }
+                record.setBlockIds(new ArrayList<>());
+            }
+            record.setContentHash(ContentHash.toString(digest));
+            record.setCodec(codecName);
+
+            // the file has outgrown the pack it was in
+            Pack previousPack = record.getPack();
+            long previousLength = record.getPackLength();
+            record.setPack(null);
+
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            if (previousPack != null) {
+                getPackWriter(backup).release(previousPack, previousLength);
+            }
+            System.out.println("Uploading complete for " + p);
+            return CompletableFuture.completedFuture(true);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    private CompletableFuture<Boolean> doCopyFile(Backup backup, Path p, LocalRecord record, LocalRecord source, Runnable onSuccess) {
+        if (source.getPack() != null) {
+            // the source content is inside a pack, so there is no blob of its own to copy
+            return doUploadFile(backup, p, record, onSuccess);
+        }
+
+        try {
+            System.out.println("Copying " + source.getPath() + " to " + p);
+            CloudBlockBlob sourceBlob = getContainer(source.getBackup()).getBlockBlobReference(source.getFilePath());
+            CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
+
+            // metadata given with the copy replaces the source's, so the blob describes this file rather than the one
+            // it was copied from. The content, and so its codec, is the source's
+            if (source.getCodec() != null) {
+                blob.getMetadata().put(CODEC_METADATA_KEY, source.getCodec());
+            }
+            putSourceMetadata(blob.getMetadata(), Files.readAttributes(p, BasicFileAttributes.class));
+            blob.startCopy(sourceBlob);
+
+            // copies within an account are normally complete by the time startCopy returns, but they are allowed
+            // to be asynchronous, so wait for the copy to finish before we record the file as uploaded
+            blob.downloadAttributes();
+            while (blob.getCopyState().getStatus() == CopyStatus.PENDING) {
+                Thread.sleep(COPY_POLL_INTERVAL);
+                blob.downloadAttributes();
+            }
+            if (blob.getCopyState().getStatus() != CopyStatus.SUCCESS) {
+                System.out.println("Copying failed for " + p + ": " + blob.getCopyState().getStatusDescription());
+                return CompletableFuture.completedFuture(false);
+            }
+
+            // a copied block blob keeps the committed block list of its source
+            record.setContentHash(source.getContentHash());
+            record.setCodec(source.getCodec());
+            record.setBlockIds(new ArrayList<>(source.getBlockIds()));
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            System.out.println("Copying complete for " + p);
+            return CompletableFuture.completedFuture(true);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    private boolean doRemoveFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        if (record != null && record.getPack() != null) {
+            // packed files are tombstoned rather than deleted - compaction reclaims the space later
+            System.out.println("Removing file " + p + " from pack " + record.getPack().getBlobName());
+            Pack pack = record.getPack();
+            long length = record.getPackLength();
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            getPackWriter(backup).release(pack, length);
+            return true;
+        }
+
+        try {
+            System.out.println("Deleting file " + p);
+            CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
+            blob.delete();
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            System.out.println("Deleting complete for " + p);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static void putSourceMetadata(Map<String, String> metadata, BasicFileAttributes attributes) {
+        metadata.put(SOURCE_MODIFIED_METADATA_KEY, Long.toString(attributes.lastModifiedTime().toMillis()));
+        metadata.put(SOURCE_SIZE_METADATA_KEY, Long.toString(attributes.size()));
+    }
+
+    private PackWriter getPackWriter(Backup backup) {
+        return packWriters.computeIfAbsent(backup.getId(),
+                id -> new PackWriter(backup, getContainer(backup), dataStore, azureExecutor, packSize));
     }
 
     private CloudBlobContainer getContainer(Backup backup) {
-        return backup.getRuntimeProperty(BACKUP_CONTAINER_KEY, CloudBlobContainer.class);
+        return containers.get(backup.getId());
     }
 }
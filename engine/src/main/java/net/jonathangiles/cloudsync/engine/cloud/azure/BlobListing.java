@@ -0,0 +1,94 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import net.jonathangiles.cloudsync.engine.cloud.CloudFile;
+
+import java.util.*;
+
+/**
+ * Lists the files in a container with a flat listing, fetching the next page of results only as the previous one is
+ * used up, so that a container of any size can be compared with the local records without holding the listing in
+ * memory. Pack blobs are internal to the store, so they are not listed.
+ */
+class BlobListing implements Iterator<CloudFile> {
+
+    // the most results the service returns in one page
+    private static final int PAGE_SIZE = 5000;
+
+    private final CloudBlobContainer container;
+
+    private Iterator<ListBlobItem> page = Collections.emptyIterator();
+    private ResultContinuation continuation;
+    private boolean lastPage;
+    private CloudFile next;
+
+    BlobListing(CloudBlobContainer container) {
+        this.container = container;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (!page.hasNext()) {
+                if (lastPage) {
+                    return false;
+                }
+                fetchPage();
+                continue;
+            }
+
+            ListBlobItem item = page.next();
+            if (item instanceof CloudBlob && !((CloudBlob) item).getName().startsWith(PackWriter.PACK_PREFIX)) {
+                next = toCloudFile((CloudBlob) item);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CloudFile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CloudFile file = next;
+        next = null;
+        return file;
+    }
+
+    private void fetchPage() {
+        try {
+            ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(null, true,
+                    EnumSet.of(BlobListingDetails.METADATA), PAGE_SIZE, continuation, null, null);
+            page = segment.getResults().iterator();
+            continuation = segment.getContinuationToken();
+            lastPage = !segment.getHasMoreResults();
+        } catch (StorageException e) {
+            // a listing that stopped part way would look like missing files, so the caller must not carry on
+            throw new IllegalStateException("Listing container " + container.getName() + " failed", e);
+        }
+    }
+
+    private static CloudFile toCloudFile(CloudBlob blob) {
+        Map<String, String> metadata = blob.getMetadata();
+        return new CloudFile(blob.getName(),
+                blob.getProperties().getLength(),
+                blob.getProperties().getContentMD5(),
+                metadata.get(AzureCloudStore.CODEC_METADATA_KEY),
+                parseLong(metadata.get(AzureCloudStore.SOURCE_MODIFIED_METADATA_KEY)),
+                parseLong(metadata.get(AzureCloudStore.SOURCE_SIZE_METADATA_KEY)));
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codec;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codecs;
+import net.jonathangiles.cloudsync.engine.util.delta.ContentChunker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Uploads a file to a block blob as a list of content-defined blocks (see {@link ContentChunker}). Blocks whose id is
+ * in the list committed by the previous upload of the same file are not sent again - only the changed blocks go over
+ * the wire through Put Block, and the new block list is then committed with Put Block List.
+ */
+class DeltaUploader {
+
+    // files up to this size fit in a single Put Blob request, so there is nothing to be gained by splitting them
+    static final long DELTA_UPLOAD_THRESHOLD = ContentChunker.MAX_CHUNK_SIZE;
+
+    /**
+     * Uploads the file, returning the block ids that make up the committed blob. The digest is updated with the full
+     * (uncompressed) content of the file as it is read. If a codec is given, each block is compressed separately, and
+     * previousBlockIds must only contain blocks that were compressed with the same codec.
+     */
+    List<String> upload(CloudBlockBlob blob, Path p, Collection<String> previousBlockIds, MessageDigest digest, Codec codec) throws IOException, StorageException {
+        try {
+            return upload(blob, p, new HashSet<>(previousBlockIds), digest, codec);
+        } catch (StorageException e) {
+            if (previousBlockIds.isEmpty()) {
+                throw e;
+            }
+            // the blob does not have the blocks we expected (e.g. it was modified or deleted outside of this app),
+            // so fall back to sending every block
+            System.out.println("Block list commit failed for " + p + ", uploading all blocks: " + e.getMessage());
+            return upload(blob, p, Collections.emptySet(), digest, codec);
+        }
+    }
+
+    private List<String> upload(CloudBlockBlob blob, Path p, Set<String> committedBlockIds, MessageDigest digest, Codec codec) throws IOException, StorageException {
+        Set<String> sentBlockIds = new HashSet<>();
+
+        digest.reset();
+        List<String> blockIds = uploadBlocks(blob, p, committedBlockIds, sentBlockIds, digest, codec);
+
+        List<BlockEntry> blockList = new ArrayList<>(blockIds.size());
+        for (String blockId : blockIds) {
+            // LATEST picks up a block we just uploaded, or otherwise the already committed block with that id
+            blockList.add(new BlockEntry(blockId, BlockSearchMode.LATEST));
+        }
+        blob.commitBlockList(blockList);
+
+        System.out.println("Uploaded " + sentBlockIds.size() + " of " + blockIds.size() + " blocks for " + p);
+        return blockIds;
+    }
+
+    /**
+     * Reads the file through the chunker, sending every block that is neither committed nor already sent, and returns
+     * the ids of all of the blocks of the file in order. All blocks must have been sent by the time this returns.
+     */
+    protected List<String> uploadBlocks(CloudBlockBlob blob, Path p, Set<String> committedBlockIds, Set<String> sentBlockIds, MessageDigest digest, Codec codec) throws IOException, StorageException {
+        List<String> blockIds = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(p)) {
+            ContentChunker.chunk(in, (buffer, length, blockId) -> {
+                digest.update(buffer, 0, length);
+                if (!committedBlockIds.contains(blockId) && sentBlockIds.add(blockId)) {
+                    try {
+                        if (codec == null) {
+                            blob.uploadBlock(blockId, new ByteArrayInputStream(buffer, 0, length), length);
+                        } else {
+                            byte[] compressed = Codecs.compress(codec, buffer, 0, length);
+                            blob.uploadBlock(blockId, new ByteArrayInputStream(compressed), compressed.length);
+                        }
+                    } catch (StorageException e) {
+                        throw new IOException(e);
+                    }
+                }
+                blockIds.add(blockId);
+            });
+        }
+        return blockIds;
+    }
+}
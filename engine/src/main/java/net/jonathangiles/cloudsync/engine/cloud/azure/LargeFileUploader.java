@@ -0,0 +1,230 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codec;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codecs;
+import net.jonathangiles.cloudsync.engine.util.delta.ContentChunker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * A {@link DeltaUploader} for very large files. The file is memory mapped a window at a time rather than streamed, and
+ * the blocks that need sending are handed to a pool of threads to upload in parallel, so the upload of one large file
+ * is no longer limited to a single connection. The bytes held by blocks that are queued or being sent are bounded, and
+ * the scan of the file waits whenever that bound is reached.
+ *
+ * <p>Block boundaries and ids are exactly the same as those {@link DeltaUploader} produces for the same content, so a
+ * file can move between the two uploaders without losing the blocks it already has in the cloud.
+ */
+class LargeFileUploader extends DeltaUploader {
+
+    // how much of the file is mapped at a time - must be larger than the biggest chunk
+    private static final int MAPPING_WINDOW = 16 * ContentChunker.MAX_CHUNK_SIZE;
+
+    private final ExecutorService blockExecutor;
+    private final Semaphore inFlightBytes;
+
+    LargeFileUploader(int uploadThreads, long maxInFlightBytes) {
+        this.blockExecutor = Executors.newFixedThreadPool(uploadThreads, r -> {
+            Thread t = new Thread(r, "azure-block-upload");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // we always need to be able to have at least one block in flight
+        this.inFlightBytes = new Semaphore((int) Math.min(Integer.MAX_VALUE, Math.max(maxInFlightBytes, ContentChunker.MAX_CHUNK_SIZE)));
+    }
+
+    @Override
+    protected List<String> uploadBlocks(CloudBlockBlob blob, Path p, Set<String> committedBlockIds, Set<String> sentBlockIds, MessageDigest digest, Codec codec) throws IOException, StorageException {
+        List<String> blockIds = new ArrayList<>();
+        List<Future<?>> uploads = new LinkedList<>();
+
+        try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+
+            while (position < size) {
+                int windowSize = (int) Math.min(MAPPING_WINDOW, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                boolean lastWindow = position + windowSize == size;
+
+                int start = 0;
+                while (start < windowSize) {
+                    // reading a mapped window past the end of a file truncated under us faults on every page, so a
+                    // truncation is looked for before each chunk rather than left to the InternalError below
+                    if (channel.size() < size) {
+                        throw new IOException("File " + p + " was truncated while it was being uploaded");
+                    }
+                    int end = ContentChunker.findBoundary(window, start, windowSize);
+                    if (end < 0) {
+                        if (!lastWindow) {
+                            // this chunk runs past the end of the window, so map the next window from its start
+                            break;
+                        }
+                        end = windowSize;
+                    }
+
+                    ByteBuffer chunk = slice(window, start, end);
+                    digest.update(chunk.duplicate());
+
+                    String blockId = ContentChunker.blockId(window, start, end);
+                    if (!committedBlockIds.contains(blockId) && sentBlockIds.add(blockId)) {
+                        checkFailures(uploads);
+                        uploads.add(uploadBlock(blob, blockId, chunk, codec));
+                    }
+                    blockIds.add(blockId);
+                    start = end;
+                }
+                position += start;
+            }
+
+            for (Future<?> upload : uploads) {
+                await(upload);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (InternalError e) {
+            // a file truncated between the check above and the read faults (SIGBUS), which the JVM raises as an
+            // InternalError - the upload fails like any other read error rather than killing the thread
+            throw new IOException("File " + p + " was truncated while it was being uploaded", e);
+        } finally {
+            uploads.forEach(upload -> upload.cancel(true));
+        }
+
+        return blockIds;
+    }
+
+    private Future<?> uploadBlock(CloudBlockBlob blob, String blockId, ByteBuffer chunk, Codec codec) throws InterruptedException {
+        int length = chunk.remaining();
+        inFlightBytes.acquire(length);
+
+        // the bytes are given back when the upload is done in any way - including being cancelled before it ever ran,
+        // which happens to the queued blocks of a file when one of its blocks fails
+        FutureTask<Void> upload = new FutureTask<Void>(() -> {
+            sendBlock(blob, blockId, chunk, codec);
+            return null;
+        }) {
+            @Override
+            protected void done() {
+                inFlightBytes.release(length);
+            }
+        };
+
+        try {
+            blockExecutor.execute(upload);
+        } catch (RejectedExecutionException e) {
+            upload.cancel(false);
+            throw e;
+        }
+        return upload;
+    }
+
+    /**
+     * Sends one block of the file. Runs on the upload threads.
+     */
+    protected void sendBlock(CloudBlockBlob blob, String blockId, ByteBuffer chunk, Codec codec) throws IOException, StorageException {
+        // compression happens here on the upload threads, so the scan of the file isn't held up by it
+        if (codec == null) {
+            blob.uploadBlock(blockId, new ByteBufferInputStream(chunk), chunk.remaining());
+        } else {
+            byte[] compressed = Codecs.compress(codec, chunk);
+            blob.uploadBlock(blockId, new ByteArrayInputStream(compressed), compressed.length);
+        }
+    }
+
+    // the bytes that can still be put in flight, for checking that failed uploads give theirs back
+    int getAvailableInFlightBytes() {
+        return inFlightBytes.availablePermits();
+    }
+
+    /*
+     * There is no point reading the rest of a huge file if one of its blocks has already failed.
+     */
+    private void checkFailures(List<Future<?>> uploads) throws IOException, StorageException, InterruptedException {
+        for (Iterator<Future<?>> it = uploads.iterator(); it.hasNext(); ) {
+            Future<?> upload = it.next();
+            if (upload.isDone()) {
+                await(upload);
+                it.remove();
+            }
+        }
+    }
+
+    private void await(Future<?> upload) throws IOException, StorageException, InterruptedException {
+        try {
+            upload.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return slice.slice();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        // supporting mark lets the storage client retry a block without first copying it into its own buffer
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure;
+
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.model.Pack;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Groups the content of small files in one backup into pack blobs (see {@link Pack}), so that hundreds of them can be
+ * uploaded with a single request. Files are buffered until the pack is full or its oldest file has waited long
+ * enough, and only once the pack is in the cloud are the records pointed at it and their onSuccess callbacks run.
+ */
+class PackWriter {
+
+    static final String PACK_PREFIX = ".packs/";
+
+    // packs with less than this fraction of live bytes are rewritten by compaction
+    static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final Backup backup;
+    private final CloudBlobContainer container;
+    private final DataStore dataStore;
+    private final Executor cloudExecutor;
+    private final long packSize;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private List<Entry> entries = new ArrayList<>();
+    private long oldestEntryTime;
+
+    PackWriter(Backup backup, CloudBlobContainer container, DataStore dataStore, Executor cloudExecutor, long packSize) {
+        this.backup = backup;
+        this.container = container;
+        this.dataStore = dataStore;
+        this.cloudExecutor = cloudExecutor;
+        this.packSize = packSize;
+    }
+
+    /**
+     * Adds the file content to the current pack. The content is stored as given, so if it has been compressed, codec
+     * names the codec it was compressed with. If replacingBlob is true, the file was previously stored in a blob of
+     * its own, which is deleted once the file is safely in a pack.
+     *
+     * <p>Returns a future that completes once the pack holding the file has been uploaded and onSuccess has run - with
+     * false if the pack could not be uploaded.
+     */
+    CompletableFuture<Boolean> add(LocalRecord record, byte[] content, String contentHash, String codec, boolean replacingBlob, Runnable onSuccess) {
+        Entry entry = new Entry(record, content.length, contentHash, codec, replacingBlob, onSuccess);
+        if (addEntry(entry, content, null)) {
+            flush();
+        }
+        return entry.done;
+    }
+
+    /*
+     * Returns true if the pack is now full. When compacting, expectedPack is the pack the content is being moved out
+     * of - if the record has moved on since we read it, the content is stale and is not added.
+     */
+    private synchronized boolean addEntry(Entry entry, byte[] content, Pack expectedPack) {
+        if (expectedPack != null && (entry.record.getPack() != expectedPack || hasPendingEntry(entry.record))) {
+            return false;
+        }
+
+        // a newer version of a file supersedes one that is still waiting in the buffer
+        entries.removeIf(e -> {
+            if (e.record != entry.record) {
+                return false;
+            }
+            e.done.complete(true);
+            return true;
+        });
+
+        if (entries.isEmpty()) {
+            oldestEntryTime = System.currentTimeMillis();
+        }
+        entry.offset = buffer.size();
+        buffer.write(content, 0, content.length);
+        entries.add(entry);
+        return buffer.size() >= packSize;
+    }
+
+    private boolean hasPendingEntry(LocalRecord record) {
+        return entries.stream().anyMatch(e -> e.record == record);
+    }
+
+    void flushIfOlderThan(long age) {
+        boolean due;
+        synchronized (this) {
+            due = !entries.isEmpty() && System.currentTimeMillis() - oldestEntryTime >= age;
+        }
+        if (due) {
+            flush();
+        }
+    }
+
+    void flush() {
+        byte[] data;
+        List<Entry> packEntries;
+        synchronized (this) {
+            if (entries.isEmpty()) {
+                return;
+            }
+            data = buffer.toByteArray();
+            packEntries = entries;
+            buffer = new ByteArrayOutputStream();
+            entries = new ArrayList<>();
+        }
+        upload(data, packEntries);
+    }
+
+    private void upload(byte[] data, List<Entry> packEntries) {
+        String blobName = PACK_PREFIX + UUID.randomUUID();
+        try {
+            System.out.println("Uploading pack " + blobName + " with " + packEntries.size() + " files");
+            container.getBlockBlobReference(blobName).uploadFromByteArray(data, 0, data.length);
+        } catch (Exception e) {
+            // the files are left unrecorded, so they will be found and uploaded again by the next consistency check
+            e.printStackTrace();
+            packEntries.forEach(entry -> entry.done.complete(false));
+            return;
+        }
+
+        // superseded entries are dead space in the pack from the outset
+        long liveBytes = packEntries.stream().mapToLong(e -> e.length).sum();
+        Pack pack = new Pack(backup, blobName, data.length, liveBytes);
+        dataStore.updatePack(pack);
+
+        for (Entry entry : packEntries) {
+            LocalRecord record = entry.record;
+            Pack previousPack = record.getPack();
+            long previousLength = record.getPackLength();
+
+            record.setPack(pack);
+            record.setPackOffset(entry.offset);
+            record.setPackLength(entry.length);
+            record.setContentHash(entry.contentHash);
+            record.setCodec(entry.codec);
+            record.setBlockIds(new ArrayList<>());
+            try {
+                if (entry.onSuccess != null) {
+                    entry.onSuccess.run();
+                }
+                entry.done.complete(true);
+            } catch (RuntimeException e) {
+                // the rest of the pack is still recorded
+                e.printStackTrace();
+                entry.done.complete(false);
+            }
+
+            if (previousPack != null) {
+                release(previousPack, previousLength);
+            } else if (entry.replacingBlob) {
+                cloudExecutor.execute(() -> deleteBlob(record.getFilePath()));
+            }
+        }
+        System.out.println("Uploading complete for pack " + blobName);
+    }
+
+    /**
+     * Tombstones the bytes of a file that no longer lives in the given pack, deleting the pack once nothing in it is
+     * live any more.
+     */
+    void release(Pack pack, long length) {
+        dataStore.releasePackBytes(pack, length).thenRunAsync(() -> {
+            if (pack.getLiveBytes() <= 0) {
+                deletePack(pack);
+            }
+        }, cloudExecutor);
+    }
+
+    private void deletePack(Pack pack) {
+        if (deleteBlob(pack.getBlobName())) {
+            dataStore.deletePack(pack);
+        }
+    }
+
+    private boolean deleteBlob(String blobName) {
+        try {
+            container.getBlockBlobReference(blobName).deleteIfExists();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the live content of every sparse pack in the backup into new packs. Each old pack is deleted once the
+     * last of its records has moved out of it.
+     */
+    void compact() {
+        for (Pack pack : dataStore.getSparsePacks(backup, COMPACTION_THRESHOLD)) {
+            List<LocalRecord> records = dataStore.getPackRecords(pack);
+            if (records.isEmpty()) {
+                deletePack(pack);
+                continue;
+            }
+
+            System.out.println("Compacting pack " + pack.getBlobName() + " (" + pack.getLiveBytes() + " of " + pack.getTotalBytes() + " bytes live)");
+            byte[] data = new byte[(int) pack.getTotalBytes()];
+            try {
+                container.getBlockBlobReference(pack.getBlobName()).downloadToByteArray(data, 0);
+            } catch (Exception e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            for (LocalRecord record : records) {
+                int from = (int) record.getPackOffset();
+                byte[] content = Arrays.copyOfRange(data, from, from + (int) record.getPackLength());
+                Entry entry = new Entry(record, content.length, record.getContentHash(), record.getCodec(), false,
+                        () -> dataStore.updateLocalRecord(backup, record));
+                if (addEntry(entry, content, pack)) {
+                    flush();
+                }
+            }
+        }
+        flush();
+    }
+
+    private static class Entry {
+        private final LocalRecord record;
+        private final int length;
+        private final String contentHash;
+        private final String codec;
+        private final boolean replacingBlob;
+        private final Runnable onSuccess;
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        private long offset;
+
+        private Entry(LocalRecord record, int length, String contentHash, String codec, boolean replacingBlob, Runnable onSuccess) {
+            this.record = record;
+            this.length = length;
+            this.contentHash = contentHash;
+            this.codec = codec;
+            this.replacingBlob = replacingBlob;
+            this.onSuccess = onSuccess;
+        }
+    }
+}
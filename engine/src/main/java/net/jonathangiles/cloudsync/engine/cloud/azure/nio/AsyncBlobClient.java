@@ -0,0 +1,410 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure.nio;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal, non-blocking client for the Azure Blob REST API, for uploading and deleting small blobs, and for deleting
+ * many blobs at once with Blob Batch requests (which the storage client has no support for). Requests are
+ * written and responses read with NIO channels on a few I/O threads, so a request in flight costs a connection and a
+ * buffer rather than a thread - thousands of them can be waiting on a high latency link at once.
+ *
+ * <p>Requests are authorised with Shared Key, and throttled (503), failed (500) and timed out requests are retried with
+ * an exponential backoff.
+ */
+public class AsyncBlobClient {
+
+    private static final String API_VERSION = "2017-04-17";
+
+    // Blob Batch requests need a later version of the API
+    private static final String BATCH_API_VERSION = "2019-02-02";
+
+    /**
+     * The most blobs that can be deleted with one batch request.
+     */
+    public static final int MAX_BATCH_SIZE = 256;
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF = 250;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final Pattern CONTENT_ID = Pattern.compile("Content-ID: *(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern STATUS_LINE = Pattern.compile("HTTP/1\\.1 (\\d{3})");
+
+    /**
+     * Told about every request, so that it can be fed into metrics and concurrency control.
+     */
+    public interface Listener {
+        void requestCompleted(long nanos);
+
+        // the request was throttled, failed on the server or timed out, and will be retried
+        void requestRetried();
+    }
+
+    private final String accountName;
+    private final byte[] accountKey;
+    private final Listener listener;
+
+    private final AsynchronousChannelGroup group;
+    private final ConnectionPool pool;
+
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "azure-nio-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public AsyncBlobClient(String accountName, String accountKey, int ioThreads, long timeout, Listener listener) throws IOException {
+        this.accountName = accountName;
+        this.accountKey = Base64.getDecoder().decode(accountKey);
+        this.listener = listener;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(ioThreads, r -> {
+            Thread t = new Thread(r, "azure-nio-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            this.pool = new ConnectionPool(group, SSLContext.getDefault(), timeout);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Uploads the content as a block blob, replacing any existing blob. Metadata is stored with the blob.
+     */
+    public CompletableFuture<Void> putBlob(URI blob, byte[] content, Map<String, String> metadata) {
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("x-ms-blob-type", "BlockBlob");
+        metadata.forEach((name, value) -> headers.put("x-ms-meta-" + name, value));
+        return send("PUT", blob, headers, content, 201).thenApply(response -> null);
+    }
+
+    /**
+     * Deletes the blob. A blob that doesn't exist counts as deleted.
+     */
+    public CompletableFuture<Void> deleteBlob(URI blob) {
+        return send("DELETE", blob, new TreeMap<>(), new byte[0], 202, 404).thenApply(response -> null);
+    }
+
+    /**
+     * Deletes up to {@link #MAX_BATCH_SIZE} blobs with a single Blob Batch request to the given service endpoint.
+     * Deletes that are throttled or fail on the server are sent again in a smaller batch. Returns the blobs that were
+     * deleted, or didn't exist - any others could not be deleted.
+     */
+    public CompletableFuture<List<URI>> deleteBlobs(URI service, List<URI> blobs) {
+        if (blobs.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("At most " + MAX_BATCH_SIZE + " blobs can be deleted in one batch");
+        }
+        CompletableFuture<List<URI>> result = new CompletableFuture<>();
+        deleteBatch(service, blobs, new ArrayList<>(), 1, result);
+        return result;
+    }
+
+    private void deleteBatch(URI service, List<URI> blobs, List<URI> deleted, int attempt, CompletableFuture<List<URI>> result) {
+        String boundary = "batch_" + UUID.randomUUID();
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("Content-Type", "multipart/mixed; boundary=" + boundary);
+        headers.put("x-ms-version", BATCH_API_VERSION);
+        byte[] body = buildBatchBody(boundary, blobs);
+
+        send("POST", service.resolve("/?comp=batch"), headers, body, 202).whenComplete((response, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            List<URI> retry = new ArrayList<>();
+            try {
+                Map<Integer, Integer> statuses = parseBatchResponse(response);
+                for (int i = 0; i < blobs.size(); i++) {
+                    Integer status = statuses.get(i);
+                    if (status != null && (status == 202 || status == 404)) {
+                        deleted.add(blobs.get(i));
+                    } else if (status == null || status == 500 || status == 503) {
+                        retry.add(blobs.get(i));
+                    }
+                }
+            } catch (IOException ex) {
+                result.completeExceptionally(ex);
+                return;
+            }
+
+            if (retry.isEmpty() || attempt == MAX_ATTEMPTS) {
+                result.complete(deleted);
+            } else {
+                listener.requestRetried();
+                retryScheduler.schedule(() -> deleteBatch(service, retry, deleted, attempt + 1, result),
+                        RETRY_BACKOFF << (attempt - 1), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /*
+     * A multipart body with one part for each delete, each of which is a complete request, signed on its own. See
+     * https://docs.microsoft.com/rest/api/storageservices/blob-batch
+     */
+    private byte[] buildBatchBody(String boundary, List<URI> blobs) {
+        String date = HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < blobs.size(); i++) {
+            URI blob = blobs.get(i);
+            Map<String, String> headers = new TreeMap<>();
+            headers.put("x-ms-date", date);
+
+            body.append("--").append(boundary).append("\r\n");
+            body.append("Content-Type: application/http\r\n");
+            body.append("Content-Transfer-Encoding: binary\r\n");
+            body.append("Content-ID: ").append(i).append("\r\n");
+            body.append("\r\n");
+            body.append("DELETE ").append(blob.getRawPath()).append(" HTTP/1.1\r\n");
+            body.append("x-ms-date: ").append(date).append("\r\n");
+            body.append("Authorization: SharedKey ").append(accountName).append(':')
+                    .append(sign("DELETE", blob, headers, 0)).append("\r\n");
+            body.append("Content-Length: 0\r\n");
+            body.append("\r\n");
+        }
+        body.append("--").append(boundary).append("--\r\n");
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Returns the status of each delete in a batch response, by its content id.
+     */
+    private static Map<Integer, Integer> parseBatchResponse(HttpResponse response) throws IOException {
+        String contentType = response.getHeaders().getOrDefault("content-type", "");
+        int boundaryStart = contentType.indexOf("boundary=");
+        if (boundaryStart < 0) {
+            throw new IOException("Batch response has no boundary: " + contentType);
+        }
+        String boundary = contentType.substring(boundaryStart + "boundary=".length()).replace("\"", "").trim();
+
+        Map<Integer, Integer> statuses = new HashMap<>();
+        for (String part : response.getBodyString().split("--" + Pattern.quote(boundary))) {
+            Matcher contentId = CONTENT_ID.matcher(part);
+            Matcher statusLine = STATUS_LINE.matcher(part);
+            if (contentId.find() && statusLine.find()) {
+                statuses.put(Integer.parseInt(contentId.group(1)), Integer.parseInt(statusLine.group(1)));
+            }
+        }
+        return statuses;
+    }
+
+    public void close() {
+        pool.close();
+        retryScheduler.shutdownNow();
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private CompletableFuture<HttpResponse> send(String method, URI uri, Map<String, String> headers, byte[] body, int... expected) {
+        CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        attempt(method, uri, headers, body, expected, 1, result);
+        return result;
+    }
+
+    private void attempt(String method, URI uri, Map<String, String> headers, byte[] body, int[] expected, int attempt,
+                         CompletableFuture<HttpResponse> result) {
+        long start = System.nanoTime();
+        exchange(method, uri, headers, body).whenComplete((response, e) -> {
+            listener.requestCompleted(System.nanoTime() - start);
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+            if (response != null && isExpected(response.getStatus(), expected)) {
+                result.complete(response);
+            } else if (attempt < MAX_ATTEMPTS && isRetryable(response, cause)) {
+                listener.requestRetried();
+                retryScheduler.schedule(() -> attempt(method, uri, headers, body, expected, attempt + 1, result),
+                        RETRY_BACKOFF << (attempt - 1), TimeUnit.MILLISECONDS);
+            } else if (response != null) {
+                result.completeExceptionally(new IOException(method + " " + uri + " failed: " + response.getStatus()
+                        + " " + response.getReason() + " " + response.getBodyString()));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private static boolean isExpected(int status, int[] expected) {
+        for (int e : expected) {
+            if (status == e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Server errors and throttling are retried, as are I/O errors - including a kept-alive connection that the server
+     * had closed while it was idle in the pool.
+     */
+    private static boolean isRetryable(HttpResponse response, Throwable e) {
+        if (response != null) {
+            return response.getStatus() == 500 || response.getStatus() == 503;
+        }
+        return e instanceof IOException || e instanceof InterruptedByTimeoutException;
+    }
+
+    /*
+     * Sends one request on a pooled connection and reads the response.
+     */
+    private CompletableFuture<HttpResponse> exchange(String method, URI uri, Map<String, String> headers, byte[] body) {
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+
+        ByteBuffer request = ByteBuffer.wrap(buildRequestHead(method, uri, headers, body.length).getBytes(StandardCharsets.ISO_8859_1));
+
+        return pool.acquire(host, port, secure).thenCompose(connection ->
+                connection.write(request)
+                        .thenCompose(v -> connection.write(ByteBuffer.wrap(body)))
+                        .thenCompose(v -> readResponse(connection, ByteBuffer.allocate(READ_BUFFER_SIZE), new byte[READ_BUFFER_SIZE], 0))
+                        .whenComplete((response, e) -> {
+                            if (response != null && response.isKeepAlive()) {
+                                pool.release(host, port, secure, connection);
+                            } else {
+                                connection.close();
+                            }
+                        }));
+    }
+
+    private CompletableFuture<HttpResponse> readResponse(Connection connection, ByteBuffer buffer, byte[] data, int length) {
+        buffer.clear();
+        return connection.read(buffer).thenCompose(n -> {
+            if (n < 0) {
+                CompletableFuture<HttpResponse> closed = new CompletableFuture<>();
+                closed.completeExceptionally(new IOException("Connection closed before the response was complete"));
+                return closed;
+            }
+
+            buffer.flip();
+            byte[] received = data;
+            if (length + n > received.length) {
+                received = new byte[Math.max(received.length * 2, length + n)];
+                System.arraycopy(data, 0, received, 0, length);
+            }
+            buffer.get(received, length, n);
+
+            try {
+                HttpResponse response = HttpResponse.parse(received, length + n);
+                if (response != null) {
+                    return CompletableFuture.completedFuture(response);
+                }
+            } catch (IOException e) {
+                CompletableFuture<HttpResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            return readResponse(connection, buffer, received, length + n);
+        });
+    }
+
+    private String buildRequestHead(String method, URI uri, Map<String, String> extraHeaders, int contentLength) {
+        Map<String, String> headers = new TreeMap<>(extraHeaders);
+        headers.put("x-ms-date", HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        headers.putIfAbsent("x-ms-version", API_VERSION);
+
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(uri.getRawPath());
+        if (uri.getRawQuery() != null) {
+            head.append('?').append(uri.getRawQuery());
+        }
+        head.append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(uri.getPort() != -1 ? uri.getHost() + ":" + uri.getPort() : uri.getHost()).append("\r\n");
+        head.append("Content-Length: ").append(contentLength).append("\r\n");
+        headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        head.append("Authorization: SharedKey ").append(accountName).append(':')
+                .append(sign(method, uri, headers, contentLength)).append("\r\n");
+        head.append("\r\n");
+        return head.toString();
+    }
+
+    /*
+     * The Shared Key signature: see https://docs.microsoft.com/rest/api/storageservices/authorize-with-shared-key
+     */
+    private String sign(String method, URI uri, Map<String, String> headers, int contentLength) {
+        StringBuilder toSign = new StringBuilder();
+        toSign.append(method).append('\n');
+        toSign.append('\n'); // Content-Encoding
+        toSign.append('\n'); // Content-Language
+        toSign.append(contentLength > 0 ? String.valueOf(contentLength) : "").append('\n');
+        toSign.append('\n'); // Content-MD5
+        toSign.append(headers.getOrDefault("Content-Type", "")).append('\n');
+        toSign.append('\n'); // Date (x-ms-date is used instead)
+        toSign.append('\n'); // If-Modified-Since
+        toSign.append('\n'); // If-Match
+        toSign.append('\n'); // If-None-Match
+        toSign.append('\n'); // If-Unmodified-Since
+        toSign.append('\n'); // Range
+
+        // the headers are in a TreeMap, so are already sorted by name
+        headers.forEach((name, value) -> {
+            if (name.startsWith("x-ms-")) {
+                toSign.append(name).append(':').append(value).append('\n');
+            }
+        });
+
+        toSign.append('/').append(accountName).append(uri.getRawPath());
+        if (uri.getRawQuery() != null) {
+            Map<String, String> parameters = new TreeMap<>();
+            for (String parameter : uri.getRawQuery().split("&")) {
+                int equals = parameter.indexOf('=');
+                parameters.put(equals < 0 ? parameter.toLowerCase() : parameter.substring(0, equals).toLowerCase(),
+                        equals < 0 ? "" : decode(parameter.substring(equals + 1)));
+            }
+            parameters.forEach((name, value) -> toSign.append('\n').append(name).append(':').append(value));
+        }
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(accountKey, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal(toSign.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return java.net.URLDecoder.decode(value, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
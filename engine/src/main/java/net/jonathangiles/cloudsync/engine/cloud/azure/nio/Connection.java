@@ -0,0 +1,65 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking connection to a server. Reads and writes complete on the I/O threads of the channel group, so
+ * nothing waiting on a connection holds a thread.
+ */
+interface Connection {
+
+    /**
+     * Writes all of the given bytes.
+     */
+    CompletableFuture<Void> write(ByteBuffer src);
+
+    /**
+     * Reads whatever is available (waiting for at least one byte) into dst, completing with the number of bytes read,
+     * or -1 at the end of the stream.
+     */
+    CompletableFuture<Integer> read(ByteBuffer dst);
+
+    void close();
+
+    static CompletableFuture<Integer> read(AsynchronousSocketChannel channel, ByteBuffer dst, long timeout) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        channel.read(dst, timeout, TimeUnit.MILLISECONDS, future, Handler.INSTANCE);
+        return future;
+    }
+
+    static CompletableFuture<Void> writeFully(AsynchronousSocketChannel channel, ByteBuffer src, long timeout) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        channel.write(src, timeout, TimeUnit.MILLISECONDS, future, Handler.INSTANCE);
+        return future.thenCompose(n -> src.hasRemaining() ? writeFully(channel, src, timeout) : CompletableFuture.completedFuture(null));
+    }
+
+    static void close(AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more we can do with it
+        }
+    }
+
+    /*
+     * Completes the future passed as the attachment. Stateless, so one instance serves every operation.
+     */
+    class Handler implements CompletionHandler<Integer, CompletableFuture<Integer>> {
+        static final Handler INSTANCE = new Handler();
+
+        @Override
+        public void completed(Integer result, CompletableFuture<Integer> future) {
+            future.complete(result);
+        }
+
+        @Override
+        public void failed(Throwable e, CompletableFuture<Integer> future) {
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure.nio;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps idle keep-alive connections for reuse, one pool per host, so most requests skip the TCP and TLS handshakes.
+ */
+class ConnectionPool {
+
+    private final AsynchronousChannelGroup group;
+    private final SSLContext sslContext;
+    private final long timeout;
+
+    private final Map<String, Deque<Connection>> idle = new HashMap<>();
+
+    ConnectionPool(AsynchronousChannelGroup group, SSLContext sslContext, long timeout) {
+        this.group = group;
+        this.sslContext = sslContext;
+        this.timeout = timeout;
+    }
+
+    CompletableFuture<Connection> acquire(String host, int port, boolean secure) {
+        Connection connection = takeIdle(key(host, port, secure));
+        return connection != null ? CompletableFuture.completedFuture(connection) : connect(host, port, secure);
+    }
+
+    /**
+     * Returns a connection to the pool once a response has been read from it in full.
+     */
+    void release(String host, int port, boolean secure, Connection connection) {
+        synchronized (idle) {
+            idle.computeIfAbsent(key(host, port, secure), k -> new ArrayDeque<>()).push(connection);
+        }
+    }
+
+    private Connection takeIdle(String key) {
+        synchronized (idle) {
+            Deque<Connection> connections = idle.get(key);
+            return connections == null ? null : connections.poll();
+        }
+    }
+
+    private CompletableFuture<Connection> connect(String host, int port, boolean secure) {
+        CompletableFuture<Connection> future = new CompletableFuture<>();
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                if (!secure) {
+                    future.complete(new PlainConnection(channel, timeout));
+                    return;
+                }
+
+                SSLEngine engine = sslContext.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+
+                TlsConnection connection = new TlsConnection(channel, engine, timeout);
+                connection.handshake().whenComplete((v, e) -> {
+                    if (e != null) {
+                        connection.close();
+                        future.completeExceptionally(e);
+                    } else {
+                        future.complete(connection);
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                Connection.close(channel);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    void close() {
+        synchronized (idle) {
+            idle.values().forEach(connections -> connections.forEach(Connection::close));
+            idle.clear();
+        }
+    }
+
+    private static String key(String host, int port, boolean secure) {
+        return (secure ? "https://" : "http://") + host + ":" + port;
+    }
+}
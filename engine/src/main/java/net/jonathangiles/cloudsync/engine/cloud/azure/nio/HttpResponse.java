@@ -0,0 +1,125 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure.nio;
+
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An HTTP/1.1 response, parsed from the bytes read so far.
+ */
+@Getter
+class HttpResponse {
+
+    private final int status;
+    private final String reason;
+
+    // header names are lower case
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    private HttpResponse(int status, String reason, Map<String, String> headers, byte[] body) {
+        this.status = status;
+        this.reason = reason;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    boolean isKeepAlive() {
+        return !"close".equalsIgnoreCase(headers.get("connection"));
+    }
+
+    String getBodyString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a whole response from the start of the data, or returns null if more data is needed. Responses to
+     * requests from this client are small, so we simply try again from the start each time more arrives.
+     */
+    static HttpResponse parse(byte[] data, int length) throws IOException {
+        int headerEnd = indexOf(data, 0, length, "\r\n\r\n");
+        if (headerEnd < 0) {
+            return null;
+        }
+
+        String[] lines = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + lines[0]);
+        }
+        int status = Integer.parseInt(statusLine[1]);
+        String reason = statusLine.length > 2 ? statusLine[2] : "";
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        int bodyStart = headerEnd + 4;
+        byte[] body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = parseChunked(data, bodyStart, length);
+        } else if (headers.containsKey("content-length")) {
+            int contentLength = Integer.parseInt(headers.get("content-length"));
+            if (length - bodyStart < contentLength) {
+                return null;
+            }
+            body = new byte[contentLength];
+            System.arraycopy(data, bodyStart, body, 0, contentLength);
+        } else {
+            // neither is allowed on a kept-alive connection, and no response we ask for has a body without a length
+            body = new byte[0];
+            headers.put("connection", "close");
+        }
+        return body == null ? null : new HttpResponse(status, reason, headers, body);
+    }
+
+    private static byte[] parseChunked(byte[] data, int start, int length) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int position = start;
+        while (true) {
+            int lineEnd = indexOf(data, position, length, "\r\n");
+            if (lineEnd < 0) {
+                return null;
+            }
+            String sizeLine = new String(data, position, lineEnd - position, StandardCharsets.ISO_8859_1);
+            int semicolon = sizeLine.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + sizeLine);
+            }
+            position = lineEnd + 2;
+            if (size == 0) {
+                // no trailers are expected, so the body ends with an empty line
+                return indexOf(data, position, length, "\r\n") < 0 ? null : body.toByteArray();
+            }
+            if (length - position < size + 2) {
+                return null;
+            }
+            body.write(data, position, size);
+            position += size + 2;
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int length, String pattern) {
+        outer:
+        for (int i = from; i <= length - pattern.length(); i++) {
+            for (int j = 0; j < pattern.length(); j++) {
+                if (data[i + j] != pattern.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
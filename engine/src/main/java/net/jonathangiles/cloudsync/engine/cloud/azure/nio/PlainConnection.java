@@ -0,0 +1,34 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An unencrypted connection, for http endpoints such as the local storage emulator.
+ */
+class PlainConnection implements Connection {
+
+    private final AsynchronousSocketChannel channel;
+    private final long timeout;
+
+    PlainConnection(AsynchronousSocketChannel channel, long timeout) {
+        this.channel = channel;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public CompletableFuture<Void> write(ByteBuffer src) {
+        return Connection.writeFully(channel, src, timeout);
+    }
+
+    @Override
+    public CompletableFuture<Integer> read(ByteBuffer dst) {
+        return Connection.read(channel, dst, timeout);
+    }
+
+    @Override
+    public void close() {
+        Connection.close(channel);
+    }
+}
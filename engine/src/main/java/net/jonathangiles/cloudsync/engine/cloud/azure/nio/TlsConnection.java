@@ -0,0 +1,171 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure.nio;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A TLS connection, driving an {@link SSLEngine} over a non-blocking channel.
+ *
+ * <p>All three buffers are kept ready for writing into: netIn holds encrypted bytes read from the channel that have
+ * not been unwrapped yet, appIn holds decrypted bytes that have not been read yet, and netOut is scratch space for
+ * wrapping.
+ */
+class TlsConnection implements Connection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final AsynchronousSocketChannel channel;
+    private final SSLEngine engine;
+    private final long timeout;
+
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private final ByteBuffer appIn;
+
+    TlsConnection(AsynchronousSocketChannel channel, SSLEngine engine, long timeout) {
+        this.channel = channel;
+        this.engine = engine;
+        this.timeout = timeout;
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    CompletableFuture<Void> handshake() {
+        try {
+            engine.beginHandshake();
+        } catch (SSLException e) {
+            return failed(e);
+        }
+        return continueHandshake();
+    }
+
+    /*
+     * Steps the handshake along until it needs to wait for the network, or is done. This is also used for the
+     * handshake messages a server may send after the initial handshake (e.g. TLS 1.3 session tickets).
+     */
+    private CompletableFuture<Void> continueHandshake() {
+        try {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        netOut.clear();
+                        SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+                        netOut.flip();
+                        if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining()) {
+                            return failed(new SSLException("Connection closed during handshake"));
+                        }
+                        return Connection.writeFully(channel, netOut, timeout).thenCompose(v -> continueHandshake());
+                    case NEED_UNWRAP:
+                        SSLEngineResult unwrapped = unwrap();
+                        if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            return readNetwork().thenCompose(v -> continueHandshake());
+                        } else if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            return failed(new SSLException("Connection closed during handshake"));
+                        }
+                        break;
+                    default:
+                        return CompletableFuture.completedFuture(null);
+                }
+            }
+        } catch (SSLException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> write(ByteBuffer src) {
+        if (!src.hasRemaining()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return failed(new SSLException("Connection closed"));
+            }
+        } catch (SSLException e) {
+            return failed(e);
+        }
+        return Connection.writeFully(channel, netOut, timeout).thenCompose(v -> write(src));
+    }
+
+    @Override
+    public CompletableFuture<Integer> read(ByteBuffer dst) {
+        // hand over anything already decrypted first
+        if (appIn.position() > 0) {
+            appIn.flip();
+            int n = Math.min(appIn.remaining(), dst.remaining());
+            ByteBuffer slice = appIn.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            appIn.position(appIn.position() + n);
+            appIn.compact();
+            return CompletableFuture.completedFuture(n);
+        }
+
+        try {
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case CLOSED:
+                    return CompletableFuture.completedFuture(-1);
+                case BUFFER_UNDERFLOW:
+                    return readNetwork().thenCompose(n -> n < 0 ? CompletableFuture.completedFuture(-1) : read(dst));
+                default:
+                    if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                            && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED) {
+                        return continueHandshake().thenCompose(v -> read(dst));
+                    }
+                    return read(dst);
+            }
+        } catch (SSLException e) {
+            return failed(e);
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    private CompletableFuture<Integer> readNetwork() {
+        return Connection.read(channel, netIn, timeout).thenApply(n -> {
+            if (n < 0) {
+                engine.closeOutbound();
+                try {
+                    engine.closeInbound();
+                } catch (SSLException e) {
+                    // the server closed without a close_notify - we are closing anyway
+                }
+            }
+            return n;
+        });
+    }
+
+    @Override
+    public void close() {
+        engine.closeOutbound();
+        Connection.close(channel);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
@@ -0,0 +1,22 @@
+package net.jonathangiles.cloudsync.engine.cloud.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression codec applied between reading a file and writing it to the cloud. Content may be compressed in
+ * several independent pieces (one per block) and concatenated, so a codec must be able to decompress the
+ * concatenation of separately compressed streams as a single stream.
+ */
+public interface Codec {
+
+    /**
+     * The name recorded against each file (and in blob metadata), used to find the codec again when restoring.
+     */
+    String getName();
+
+    OutputStream compress(OutputStream out) throws IOException;
+
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,163 @@
+package net.jonathangiles.cloudsync.engine.cloud.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * The registry of available {@link Codec codecs}, and helpers for applying them.
+ */
+public final class Codecs {
+
+    public static final String NONE = "none";
+
+    // how much of the start of a file we compress to decide whether the whole file is worth compressing
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    // files whose sample doesn't shrink below this ratio (JPEGs, zips, video...) are stored as they are
+    private static final double MIN_COMPRESSION_RATIO = 0.9;
+
+    // below this size the codec's own framing outweighs anything it could save
+    private static final int MIN_COMPRESSIBLE_SIZE = 256;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+    static {
+        register(new GzipCodec());
+    }
+
+    private Codecs() { }
+
+    public static void register(Codec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * Returns the codec with the given name, or null for {@link #NONE} (or an unknown name, which is reported).
+     */
+    public static Codec forName(String name) {
+        if (name == null || NONE.equals(name)) {
+            return null;
+        }
+        Codec codec = codecs.get(name);
+        if (codec == null) {
+            System.out.println("Unknown compression codec '" + name + "', uploads will not be compressed");
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the codec to use for the given file: the preferred codec, unless a sample from the start of the file
+     * shows that it is already compressed, in which case null.
+     */
+    public static Codec select(Codec preferred, Path p) {
+        if (preferred == null) {
+            return null;
+        }
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(p)) {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return select(preferred, sample, length);
+    }
+
+    /**
+     * As {@link #select(Codec, Path)}, for content that is already in memory.
+     */
+    public static Codec select(Codec preferred, byte[] content, int length) {
+        if (preferred == null) {
+            return null;
+        }
+        length = Math.min(length, SAMPLE_SIZE);
+        if (length < MIN_COMPRESSIBLE_SIZE) {
+            return null;
+        }
+
+        // a fast deflate is a cheap, codec independent estimate of how compressible the content is
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content, 0, length);
+            deflater.finish();
+            byte[] scratch = new byte[COPY_BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(scratch);
+            }
+            return compressed < length * MIN_COMPRESSION_RATIO ? preferred : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static String getName(Codec codec) {
+        return codec == null ? null : codec.getName();
+    }
+
+    public static byte[] compress(Codec codec, byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2);
+        try (OutputStream out = codec.compress(bytes)) {
+            out.write(data, offset, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static byte[] compress(Codec codec, ByteBuffer data) throws IOException {
+        ByteBuffer in = data.duplicate();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.remaining() / 2);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (OutputStream out = codec.compress(bytes)) {
+            while (in.hasRemaining()) {
+                int n = Math.min(buffer.length, in.remaining());
+                in.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compresses the whole stream into out as it is read, closing out only once all of it has been written - closing a
+     * blob output stream commits the blob, and a blob that was only partly written must not be.
+     */
+    public static void compress(Codec codec, InputStream in, OutputStream out) throws IOException {
+        OutputStream compressed = codec.compress(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                compressed.write(buffer, 0, read);
+            }
+        } finally {
+            // finishes the codec's stream (and frees its resources) without closing out
+            compressed.close();
+        }
+        out.close();
+    }
+}
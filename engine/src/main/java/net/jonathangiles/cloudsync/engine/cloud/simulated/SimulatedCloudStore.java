@@ -0,0 +1,402 @@
+package net.jonathangiles.cloudsync.engine.cloud.simulated;
+
+import net.jonathangiles.cloudsync.engine.cloud.CloudFile;
+import net.jonathangiles.cloudsync.engine.cloud.CloudStore;
+import net.jonathangiles.cloudsync.engine.cloud.ConcurrencyController;
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.util.ContentHash;
+import net.jonathangiles.cloudsync.engine.util.KeyedTaskExecutor;
+import net.jonathangiles.cloudsync.engine.util.Task;
+import net.jonathangiles.cloudsync.engine.util.TaskQueue;
+import net.jonathangiles.cloudsync.engine.util.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link CloudStore} that runs entirely on the local machine, for measuring the throughput of the backup engine
+ * without a storage account. Every request pays a configurable latency, all transfers share a link of configurable
+ * bandwidth, and a configurable fraction of requests are throttled (as a 503 would be) and retried with an
+ * exponential backoff, as the Azure client does.
+ *
+ * <p>If a simulator directory is configured, blobs are written to it as files (one directory per backup container),
+ * otherwise file content is read and discarded.
+ */
+@Singleton
+public class SimulatedCloudStore implements CloudStore {
+
+    // transfers are paced in slices of this size, so that concurrent transfers share the link fairly
+    private static final int TRANSFER_SLICE = 1024 * 1024;
+
+    // the most files a listing returns for each request
+    private static final int LIST_PAGE_SIZE = 5000;
+
+    // the most files a batch delete request removes
+    private static final int DELETE_BATCH_SIZE = 256;
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF = 100;
+
+    private final TaskQueue taskQueue;
+
+    private final Metrics metrics;
+
+    // concurrency is controlled the same way as in the Azure store, so that results are comparable
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ConcurrencyController concurrency;
+    private final KeyedTaskExecutor ordered;
+
+    // null if blobs are not kept
+    private final Path directory;
+    private final long latency;
+    private final long bandwidth;
+    private final double throttleRate;
+
+    // the time (in nanoseconds) at which the link is next free to carry data
+    private long linkFreeAt;
+
+    // counters for reporting
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong filesUploaded = new AtomicLong();
+    private final AtomicLong filesCopied = new AtomicLong();
+    private final AtomicLong filesRemoved = new AtomicLong();
+    private final AtomicLong failedTasks = new AtomicLong();
+
+    @Inject
+    public SimulatedCloudStore(TaskQueue taskQueue, Config config, Metrics metrics) {
+        this.taskQueue = taskQueue;
+        this.metrics = metrics;
+        this.directory = config.getSimulatorDirectory() == null ? null : Paths.get(config.getSimulatorDirectory());
+        this.latency = config.getSimulatorLatency();
+        this.bandwidth = config.getSimulatorBandwidth();
+        this.throttleRate = config.getSimulatorThrottleRate();
+        this.concurrency = new ConcurrencyController("Simulated upload", config.getUploadConcurrency(),
+                config.getMinUploadConcurrency(), config.getMaxUploadConcurrency());
+        metrics.addComponent("type=Concurrency,name=Uploads", concurrency);
+
+        System.out.println("Using simulated cloud store (latency " + latency + "ms, bandwidth "
+                + (bandwidth > 0 ? bandwidth + " bytes/s" : "unlimited") + ", throttle rate " + throttleRate + ")");
+
+        // as in the Azure store, tasks for the same path run in order and stale uploads are dropped
+        this.ordered = new KeyedTaskExecutor(task -> CompletableFuture.runAsync(() -> process(task), executor),
+                metrics::taskSuperseded);
+        concurrency.dispatchAsync(this.taskQueue.toFlowable(), ordered::submit);
+    }
+
+    @Override
+    public void createContainer(Backup backup) {
+        try {
+            request();
+            if (directory != null) {
+                Files.createDirectories(directory.resolve(backup.getBackupName()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    @Override
+    public void uploadFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        executor.submit(() -> doUploadFile(backup, p, record, onSuccess));
+    }
+
+    @Override
+    public void copyFile(Backup backup, Path p, LocalRecord record, LocalRecord source, Runnable onSuccess) {
+        executor.submit(() -> doCopyFile(backup, p, record, source, onSuccess));
+    }
+
+    @Override
+    public void removeFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        executor.submit(() -> doRemoveFile(backup, p, onSuccess));
+    }
+
+    @Override
+    public Iterator<CloudFile> listFiles(Backup backup) {
+        if (directory == null) {
+            // nothing was kept
+            return Collections.emptyIterator();
+        }
+
+        Path container = directory.resolve(backup.getBackupName());
+        Path root = container.getFileSystem().getRootDirectories().iterator().next();
+        List<CloudFile> files = new ArrayList<>();
+        try {
+            request();
+            Files.walkFileTree(container, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path blob, BasicFileAttributes attrs) throws IOException {
+                    // one request for every page of results, as a listing of Azure would take
+                    if (files.size() % LIST_PAGE_SIZE == LIST_PAGE_SIZE - 1) {
+                        request();
+                    }
+                    String name = root.resolve(container.relativize(blob).toString()).toString();
+                    files.add(new CloudFile(name, attrs.size(), null, null, attrs.lastModifiedTime().toMillis(), attrs.size()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Listing container " + container + " failed", e);
+        }
+        files.sort(Comparator.comparing(CloudFile::getName, CloudFile.NAME_ORDER));
+        return files.iterator();
+    }
+
+    private void process(Task task) {
+        metrics.taskStarted(task);
+        boolean succeeded = false;
+        switch (task.getType()) {
+            case UPLOAD_FILE:
+            case REPLACE_FILE: succeeded = doUploadFile(task.getBackup(), task.getPath(), task.getRecord(), task.getRunnable()); break;
+            case COPY_FILE: succeeded = doCopyFile(task.getBackup(), task.getPath(), task.getRecord(), task.getSource(), task.getRunnable()); break;
+            case DELETE_FILE: succeeded = doRemoveFile(task.getBackup(), task.getPath(), task.getRunnable()); break;
+            case DELETE_FILES: succeeded = doRemoveFiles(task); break;
+        }
+        metrics.taskFinished(task, succeeded);
+    }
+
+    private boolean doUploadFile(Backup backup, Path p, LocalRecord record, Runnable onSuccess) {
+        try {
+            request();
+
+            MessageDigest digest = ContentHash.newDigest();
+            Path blob = getBlobPath(backup, p);
+            FileTime modifiedTime = Files.getLastModifiedTime(p);
+            try (InputStream in = new DigestInputStream(Files.newInputStream(p), digest);
+                 OutputStream out = blob == null ? null : Files.newOutputStream(blob)) {
+                byte[] buffer = new byte[TRANSFER_SLICE];
+                int read;
+                while ((read = readSlice(in, buffer)) > 0) {
+                    transfer(read);
+                    if (out != null) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+            }
+            if (blob != null) {
+                // blobs are stored as they are, so the blob file's modified time stands in for the metadata Azure keeps
+                Files.setLastModifiedTime(blob, modifiedTime);
+            }
+
+            record.setContentHash(ContentHash.toString(digest));
+            record.setCodec(null);
+            record.setBlockIds(new ArrayList<>());
+            filesUploaded.incrementAndGet();
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            return true;
+        } catch (Exception e) {
+            failedTasks.incrementAndGet();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean doCopyFile(Backup backup, Path p, LocalRecord record, LocalRecord source, Runnable onSuccess) {
+        try {
+            // a server-side copy costs a request, but no transfer
+            request();
+            Path sourceBlob = getBlobPath(source.getBackup(), source.getPath());
+            Path blob = getBlobPath(backup, p);
+            if (blob != null) {
+                Files.copy(sourceBlob, blob, StandardCopyOption.REPLACE_EXISTING);
+                // as with Azure, the copy describes this file rather than its source
+                Files.setLastModifiedTime(blob, Files.getLastModifiedTime(p));
+            }
+
+            record.setContentHash(source.getContentHash());
+            record.setCodec(source.getCodec());
+            record.setBlockIds(new ArrayList<>(source.getBlockIds()));
+            filesCopied.incrementAndGet();
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            return true;
+        } catch (Exception e) {
+            failedTasks.incrementAndGet();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean doRemoveFile(Backup backup, Path p, Runnable onSuccess) {
+        try {
+            request();
+            Path blob = getBlobPath(backup, p);
+            if (blob != null) {
+                Files.deleteIfExists(blob);
+            }
+
+            filesRemoved.incrementAndGet();
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            return true;
+        } catch (Exception e) {
+            failedTasks.incrementAndGet();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /*
+     * Removes the files a batch at a time, as the Azure store does with Blob Batch requests.
+     */
+    private boolean doRemoveFiles(Task task) {
+        try {
+            List<LocalRecord> records = task.getRecords();
+            for (int i = 0; i < records.size(); i++) {
+                if (i % DELETE_BATCH_SIZE == 0) {
+                    request();
+                }
+                Path blob = getBlobPath(task.getBackup(), records.get(i).getPath());
+                if (blob != null) {
+                    Files.deleteIfExists(blob);
+                }
+            }
+
+            filesRemoved.addAndGet(records.size());
+            if (task.getRunnable() != null) {
+                task.getRunnable().run();
+            }
+            return true;
+        } catch (Exception e) {
+            failedTasks.incrementAndGet();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /*
+     * Simulates the round trip of a request, retrying it with an exponential backoff whenever it is throttled.
+     */
+    private void request() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            requests.incrementAndGet();
+            long start = System.nanoTime();
+            sleep(TimeUnit.MILLISECONDS.toNanos(latency));
+            long nanos = System.nanoTime() - start;
+            metrics.requestCompleted(nanos);
+            concurrency.requestCompleted(nanos);
+            if (throttleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= throttleRate) {
+                return;
+            }
+
+            throttledRequests.incrementAndGet();
+            if (attempt == MAX_ATTEMPTS) {
+                throw new IOException("Request throttled (503 Server Busy) after " + attempt + " attempts");
+            }
+            metrics.requestRetried();
+            concurrency.throttled();
+            sleep(TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF << (attempt - 1)));
+        }
+    }
+
+    /*
+     * Waits for the given number of bytes to pass over the shared link.
+     */
+    private void transfer(long bytes) {
+        bytesUploaded.addAndGet(bytes);
+        if (bandwidth <= 0) {
+            return;
+        }
+
+        long doneAt;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, linkFreeAt);
+            linkFreeAt = start + TimeUnit.SECONDS.toNanos(bytes) / bandwidth;
+            doneAt = linkFreeAt;
+        }
+        sleep(doneAt - System.nanoTime());
+    }
+
+    private static int readSlice(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+        }
+        return length;
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Blobs are named after the full path of the file, as they are in Azure. Returns null if blobs are not kept.
+     */
+    private Path getBlobPath(Backup backup, Path p) throws IOException {
+        if (directory == null) {
+            return null;
+        }
+        Path blob = directory.resolve(backup.getBackupName()).resolve(p.getRoot() == null ? p : p.getRoot().relativize(p));
+        Files.createDirectories(blob.getParent());
+        return blob;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getFilesUploaded() {
+        return filesUploaded.get();
+    }
+
+    public long getFilesCopied() {
+        return filesCopied.get();
+    }
+
+    public long getFilesRemoved() {
+        return filesRemoved.get();
+    }
+
+    public long getFailedTasks() {
+        return failedTasks.get();
+    }
+}
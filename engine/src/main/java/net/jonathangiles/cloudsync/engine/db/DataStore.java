@@ -1,10 +1,14 @@
 package net.jonathangiles.cloudsync.engine.db;
 
 import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.DirectorySummary;
 import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.model.Pack;
 
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 public interface DataStore {
@@ -13,9 +17,65 @@ public interface DataStore {
 
     LocalRecord getLocalRecord(Backup backup, Path p);
 
-    void updateLocalRecord(Backup backup, LocalRecord record);
+    /**
+     * Returns the in-memory index of the records in the given backup. This is kept in step with
+     * {@link #updateLocalRecord(Backup, LocalRecord)} and {@link #deleteLocalRecord(LocalRecord)}, and can answer whether a
+     * file is known and unchanged without going to the database.
+     */
+    RecordIndex getRecordIndex(Backup backup);
+
+    /**
+     * Returns a record (from any backup) whose uploaded content has the given hash, or null if there is none.
+     */
+    LocalRecord getLocalRecordByContentHash(String contentHash);
+
+    /**
+     * Cheap pre-check for {@link #getLocalRecordByContentHash(String)}, so that we only hash files whose size matches
+     * content that is already in the cloud.
+     */
+    boolean hasContentOfSize(long size);
+
+    /**
+     * Writes are applied asynchronously - the returned future completes once the change is durable.
+     */
+    CompletableFuture<Void> updateLocalRecord(Backup backup, LocalRecord record);
 
     Stream<LocalRecord> getBackupRecords(Backup backup);
 
-    void deleteLocalRecord(LocalRecord record);
+    CompletableFuture<Void> deleteLocalRecord(LocalRecord record);
+
+    /**
+     * Returns the records of every file under the given directory, at any depth, found with a range query on the path.
+     */
+    List<LocalRecord> getLocalRecordsUnder(Backup backup, Path directory);
+
+    /**
+     * Deletes the records together, in a single commit.
+     */
+    CompletableFuture<Void> deleteLocalRecords(Backup backup, List<LocalRecord> records);
+
+    /**
+     * Returns the stored directory summaries for the backup, keyed by directory path.
+     */
+    Map<String, DirectorySummary> getDirectorySummaries(Backup backup);
+
+    CompletableFuture<Void> updateDirectorySummary(DirectorySummary summary);
+
+    CompletableFuture<Void> deleteDirectorySummary(DirectorySummary summary);
+
+    CompletableFuture<Void> updatePack(Pack pack);
+
+    CompletableFuture<Void> deletePack(Pack pack);
+
+    /**
+     * Tombstones the given number of bytes in the pack, which are no longer used by any record.
+     */
+    CompletableFuture<Void> releasePackBytes(Pack pack, long length);
+
+    /**
+     * Returns the packs in the backup whose live bytes are less than the given fraction of their total size.
+     */
+    List<Pack> getSparsePacks(Backup backup, double maxLiveRatio);
+
+    List<LocalRecord> getPackRecords(Pack pack);
 }
@@ -0,0 +1,260 @@
+package net.jonathangiles.cloudsync.engine.db;
+
+import net.jonathangiles.cloudsync.engine.model.Directory;
+import net.jonathangiles.cloudsync.engine.model.DirectoryTree;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the records in one backup, mapping file path to (last modified time, size, record id). This is
+ * enough to answer "do we know this file, and has it changed?" without going to the database, and lookups can run
+ * from any number of threads at once.
+ *
+ * <p>To keep the footprint small with millions of records, the index is an open addressing hash table over flat arrays
+ * - the directory and name of each file, and the three values for each file packed together - rather than a map of
+ * objects. Directories are the backup's shared {@link Directory} nodes, so each entry only holds its own file name.
+ *
+ * <p>It also holds the sizes of the records whose content hash is known, so that the check for duplicate content
+ * doesn't cost a query for every file. Sizes are never taken out again, as a size with no content left only costs the
+ * check a hash of the file.
+ */
+public class RecordIndex {
+
+    public static final long NOT_FOUND = -1;
+
+    private static final int VALUES_PER_ENTRY = 3;
+    private static final int MODIFIED = 0;
+    private static final int SIZE = 1;
+    private static final int ID = 2;
+
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final DirectoryTree directoryTree;
+
+    private Directory[] directories;
+    private String[] names;
+    private long[] values;
+    private int count;
+
+    private final Set<Long> contentSizes = ConcurrentHashMap.newKeySet();
+
+    public RecordIndex(DirectoryTree directoryTree) {
+        this(directoryTree, 1024);
+    }
+
+    public RecordIndex(DirectoryTree directoryTree, int expectedSize) {
+        this.directoryTree = directoryTree;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public boolean contains(Path p) {
+        return getId(p) != NOT_FOUND;
+    }
+
+    public long getId(Path p) {
+        lock.readLock().lock();
+        try {
+            int slot = find(p);
+            return slot < 0 ? NOT_FOUND : values[slot * VALUES_PER_ENTRY + ID];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The equivalent of {@link LocalRecord#matches(Path)}, answered from the index.
+     */
+    public boolean matches(Path p) {
+        try {
+            return p != null && matches(p, Files.getLastModifiedTime(p).toMillis(), Files.size(p));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public boolean matches(Path p, long lastModifiedTime, long size) {
+        lock.readLock().lock();
+        try {
+            int slot = find(p);
+            return slot >= 0 &&
+                    values[slot * VALUES_PER_ENTRY + MODIFIED] == lastModifiedTime &&
+                    values[slot * VALUES_PER_ENTRY + SIZE] == size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(LocalRecord record) {
+        put(record.getDirectory(), record.getFileName(), record.getLastModifiedTime(), record.getSize(), record.getId());
+        if (record.getContentHash() != null) {
+            addContentSize(record.getSize());
+        }
+    }
+
+    public void put(Directory directory, String name, long lastModifiedTime, long size, long id) {
+        // a data store may hand out another instance of a directory (JPA does after a rollback), so the entry always
+        // refers to the backup's own node for it
+        directory = directoryTree.intern(directory.getPath());
+
+        lock.writeLock().lock();
+        try {
+            if (count + 1 > names.length * LOAD_FACTOR) {
+                resize(names.length * 2);
+            }
+            int slot = insert(directory, name);
+            values[slot * VALUES_PER_ENTRY + MODIFIED] = lastModifiedTime;
+            values[slot * VALUES_PER_ENTRY + SIZE] = size;
+            values[slot * VALUES_PER_ENTRY + ID] = id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Path p) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(p);
+            if (slot < 0) {
+                return;
+            }
+            directories[slot] = null;
+            names[slot] = null;
+            count--;
+
+            // backward shift deletion - move any following entries of the same probe run up into the gap, so that
+            // lookups never have to step over tombstones
+            int mask = names.length - 1;
+            int gap = slot;
+            for (int i = (slot + 1) & mask; names[i] != null; i = (i + 1) & mask) {
+                int home = hash(directories[i], names[i]) & mask;
+                if (((i - home) & mask) >= ((i - gap) & mask)) {
+                    move(i, gap);
+                    gap = i;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addContentSize(long size) {
+        contentSizes.add(size);
+    }
+
+    /**
+     * Whether a record with a content hash may have the given size.
+     */
+    public boolean hasContentOfSize(long size) {
+        return contentSizes.contains(size);
+    }
+
+    /**
+     * Returns a snapshot of every path in the index.
+     */
+    public List<String> getPaths() {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>(count);
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null) {
+                    result.add(directories[i].getPath().resolve(names[i]).toString());
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int find(Path p) {
+        // a file in a directory nothing was ever recorded in can't be in the index
+        Directory directory = p.getParent() == null ? null : directoryTree.find(p.getParent());
+        if (directory == null) {
+            return -1;
+        }
+        String name = p.getFileName().toString();
+
+        int mask = names.length - 1;
+        for (int i = hash(directory, name) & mask; names[i] != null; i = (i + 1) & mask) {
+            if (directories[i] == directory && names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(Directory directory, String name) {
+        int mask = names.length - 1;
+        int i = hash(directory, name) & mask;
+        for (; names[i] != null; i = (i + 1) & mask) {
+            if (directories[i] == directory && names[i].equals(name)) {
+                return i;
+            }
+        }
+        directories[i] = directory;
+        names[i] = name;
+        count++;
+        return i;
+    }
+
+    private void move(int from, int to) {
+        directories[to] = directories[from];
+        names[to] = names[from];
+        directories[from] = null;
+        names[from] = null;
+        System.arraycopy(values, from * VALUES_PER_ENTRY, values, to * VALUES_PER_ENTRY, VALUES_PER_ENTRY);
+    }
+
+    private void resize(int capacity) {
+        Directory[] oldDirectories = directories;
+        String[] oldNames = names;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = insert(oldDirectories[i], oldNames[i]);
+                System.arraycopy(oldValues, i * VALUES_PER_ENTRY, values, slot * VALUES_PER_ENTRY, VALUES_PER_ENTRY);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        directories = new Directory[capacity];
+        names = new String[capacity];
+        values = new long[capacity * VALUES_PER_ENTRY];
+        count = 0;
+    }
+
+    private static int hash(Directory directory, String name) {
+        // directories are unique, so their identity hash stands in for the path. The bits are spread, as we take the
+        // low bits for the slot
+        int h = (31 * System.identityHashCode(directory) + name.hashCode()) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)));
+        return capacity * 2;
+    }
+}
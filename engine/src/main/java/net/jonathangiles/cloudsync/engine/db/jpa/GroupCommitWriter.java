@@ -0,0 +1,138 @@
+package net.jonathangiles.cloudsync.engine.db.jpa;
+
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies changes to the database on a single writer thread, grouping every change that arrives within the commit
+ * interval (up to the batch size) into one transaction. Each commit is a log flush in Derby, so during a bulk sync this
+ * turns thousands of one-row transactions into a handful of large ones.
+ *
+ * <p>If a transaction fails, each of its changes is applied again in a transaction of its own, so that only the change
+ * at fault fails rather than every change that happened to be grouped with it. Changes must therefore be safe to run
+ * again, and must cope with the entities they touch having been detached by the rollback.
+ */
+class GroupCommitWriter {
+
+    private final EntityManager entityManager;
+    private final long commitIntervalNanos;
+    private final int batchSize;
+    private final Metrics metrics;
+
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+
+    GroupCommitWriter(EntityManager entityManager, long commitInterval, int batchSize, Metrics metrics) {
+        this.entityManager = entityManager;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitInterval);
+        this.batchSize = batchSize;
+        this.metrics = metrics;
+
+        Thread writer = new Thread(this::writeLoop, "db-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the change to be applied in a future transaction. onCommit (which may be null) is run on the writer thread
+     * after the transaction has committed, and the returned future completes once the change is durable.
+     */
+    CompletableFuture<Void> submit(Runnable change, Runnable onCommit) {
+        Change c = new Change(change, onCommit);
+        changes.add(c);
+        return c.future;
+    }
+
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(changes.take());
+
+                // hold the transaction open for more changes until the commit interval is up or the batch is full
+                long deadline = System.nanoTime() + commitIntervalNanos;
+                while (batch.size() < batchSize) {
+                    Change c = changes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (c == null) {
+                        break;
+                    }
+                    batch.add(c);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Change> batch) {
+        RuntimeException failure = apply(batch);
+        if (failure != null) {
+            if (batch.size() == 1) {
+                failure.printStackTrace();
+                batch.get(0).future.completeExceptionally(failure);
+            } else {
+                System.out.println("Commit of " + batch.size() + " changes failed (" + failure + "), retrying them one at a time");
+                for (Change c : batch) {
+                    commit(Collections.singletonList(c));
+                }
+            }
+            return;
+        }
+
+        for (Change c : batch) {
+            try {
+                if (c.onCommit != null) {
+                    c.onCommit.run();
+                }
+                c.future.complete(null);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                c.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /*
+     * Returns the exception the transaction failed with, or null if it committed.
+     */
+    private RuntimeException apply(List<Change> batch) {
+        EntityTransaction transaction = entityManager.getTransaction();
+        long start = System.nanoTime();
+        try {
+            transaction.begin();
+            for (Change c : batch) {
+                c.change.run();
+            }
+            transaction.commit();
+            metrics.commitCompleted(System.nanoTime() - start);
+            return null;
+        } catch (RuntimeException e) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            return e;
+        }
+    }
+
+    private static class Change {
+        private final Runnable change;
+        private final Runnable onCommit;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Change(Runnable change, Runnable onCommit) {
+            this.change = change;
+            this.onCommit = onCommit;
+        }
+    }
+}
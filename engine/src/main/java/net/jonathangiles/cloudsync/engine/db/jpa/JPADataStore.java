@@ -1,8 +1,13 @@
 package net.jonathangiles.cloudsync.engine.db.jpa;
 
 import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.db.RecordIndex;
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
 import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.Directory;
+import net.jonathangiles.cloudsync.engine.model.DirectorySummary;
 import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.model.Pack;
 import net.jonathangiles.cloudsync.engine.util.config.Config;
 
 import javax.inject.Inject;
@@ -10,28 +15,39 @@ import javax.inject.Singleton;
 import javax.persistence.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Singleton
 public class JPADataStore implements DataStore {
 
     private static final String PERSISTENCE_UNIT_NAME = "backupDB";
+
+    // Derby allows only so many parameters in a query, so long 'in' lists are split up
+    private static final int MAX_IN_LIST = 1000;
     private EntityManagerFactory factory;
     private EntityManager entityManager;
 
     private final Config config;
 
-    private ExecutorService dbThread = Executors.newSingleThreadExecutor();
+    // all changes go through the writer, which groups them into as few transactions as possible
+    private final GroupCommitWriter writer;
+
+    // record index for each backup, keyed by backup id
+    private final Map<Long, RecordIndex> recordIndexes = new ConcurrentHashMap<>();
 
     @Inject
-    JPADataStore(Config config) {
+    JPADataStore(Config config, Metrics metrics) {
         this.config = config;
 
         factory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME);
         entityManager = factory.createEntityManager();
+        writer = new GroupCommitWriter(entityManager, config.getDbCommitInterval(), config.getDbCommitBatchSize(), metrics);
 
         init();
     }
@@ -39,21 +55,29 @@ public class JPADataStore implements DataStore {
     private void init() {
         // get the configured backup sets from the local Config file
         // and the backups that have previously been instantiated and loaded into the local DB
-        Query q = entityManager.createQuery("select b from Backup b");
-        List<Backup> backupsInDB = q.getResultList();
+        List<Backup> backupsInDB = getBackupList();
 
         // now we reconcile...
         // Anything in the config file that is not in the DB, we create in the DB
         // Anything in the DB that is not in the config file, we delete from the DB
 
+        List<CompletableFuture<Void>> changes = new ArrayList<>();
+
+        // ids now come from the id_sequence table, which must start past the ids already handed out before it existed
+        changes.add(transact(() -> {
+            seedIdSequence("record_ids", "record");
+            seedIdSequence("directory_ids", "directory");
+            seedIdSequence("pack_ids", "pack");
+        }));
+
         // step one: see if there is a backup in the DB for a given config file, and if not, add one
         config.getBackupConfig().forEach(backupConfig -> {
             boolean exists = backupsInDB.stream().anyMatch(backup -> Config.BackupConfig.match(backupConfig, backup));
             if (!exists) {
-                transact(() -> {
+                changes.add(transact(() -> {
                     Backup backup = new Backup(backupConfig.getName(), Paths.get(backupConfig.getRoot()));
                     entityManager.persist(backup);
-                });
+                }));
             }
         });
 
@@ -61,48 +85,257 @@ public class JPADataStore implements DataStore {
         backupsInDB.forEach(backup -> {
             boolean noMatch = config.getBackupConfig().noneMatch(backupConfig -> Config.BackupConfig.match(backupConfig, backup));
             if (noMatch) {
-                transact(() -> entityManager.remove(backup));
+                changes.add(transact(() -> {
+                    entityManager.createQuery("delete from DirectorySummary s where s.backup = :backup")
+                            .setParameter("backup", backup)
+                            .executeUpdate();
+                    entityManager.createQuery("update LocalRecord r set r.pack = null where r.backup = :backup")
+                            .setParameter("backup", backup)
+                            .executeUpdate();
+                    entityManager.createQuery("delete from Pack p where p.backup = :backup")
+                            .setParameter("backup", backup)
+                            .executeUpdate();
+
+                    // directories refer to each other, so they are unlinked before being deleted
+                    entityManager.createQuery("update LocalRecord r set r.directory = null where r.backup = :backup")
+                            .setParameter("backup", backup)
+                            .executeUpdate();
+                    entityManager.createQuery("update Directory d set d.parent = null where d.backup = :backup")
+                            .setParameter("backup", backup)
+                            .executeUpdate();
+                    entityManager.createQuery("delete from Directory d where d.backup = :backup")
+                            .setParameter("backup", backup)
+                            .executeUpdate();
+                    entityManager.remove(backup);
+                }));
             }
         });
+
+        // make sure the backup list is up to date before anyone asks for it
+        CompletableFuture.allOf(changes.toArray(new CompletableFuture<?>[0])).join();
+
+        // every record in a directory shares its node, so the directories are all loaded up front
+        boolean migrate = hasFilePathColumn();
+        for (Backup backup : getBackupList()) {
+            entityManager.createQuery("select d from Directory d where d.backup = :backup", Directory.class)
+                    .setParameter("backup", backup)
+                    .getResultStream()
+                    .forEach(backup.getDirectories()::add);
+            if (migrate) {
+                migrateFilePaths(backup);
+            }
+        }
+        if (migrate) {
+            transact(() -> entityManager.createNativeQuery("alter table RECORD drop column FILEPATH").executeUpdate()).join();
+        }
+
+        // content can be copied from any backup, so the check for content of a size needs every backup's index
+        getBackupList().forEach(this::getRecordIndex);
+    }
+
+    private void seedIdSequence(String sequence, String table) {
+        entityManager.createNativeQuery("update id_sequence set SEQ_COUNT = (select max(ID) from " + table + ") " +
+                "where SEQ_NAME = ? and SEQ_COUNT < (select max(ID) from " + table + ")")
+                .setParameter(1, sequence)
+                .executeUpdate();
+    }
+
+    /*
+     * Databases created before records were stored by directory have each record's full path in a FILEPATH column.
+     */
+    private boolean hasFilePathColumn() {
+        Number count = (Number) entityManager.createNativeQuery("select count(*) from SYS.SYSCOLUMNS c " +
+                "join SYS.SYSTABLES t on c.REFERENCEID = t.TABLEID " +
+                "where t.TABLENAME = 'RECORD' and c.COLUMNNAME = 'FILEPATH'")
+                .getSingleResult();
+        return count.intValue() > 0;
+    }
+
+    private void migrateFilePaths(Backup backup) {
+        // a native query's results are untyped - each row is an array of its columns
+        List<?> rows = entityManager.createNativeQuery("select ID, FILEPATH from RECORD where BACKUP_ID = ?")
+                .setParameter(1, backup.getId())
+                .getResultList();
+        System.out.println("Moving " + rows.size() + " records of backup '" + backup.getBackupName() + "' to directories");
+
+        transact(() -> rows.forEach(result -> {
+            Object[] row = (Object[]) result;
+            LocalRecord record = entityManager.find(LocalRecord.class, ((Number) row[0]).longValue());
+            if (record != null && row[1] != null) {
+                record.setPath(Paths.get((String) row[1]));
+                storeDirectory(record.getDirectory());
+            }
+        })).join();
     }
 
     public List<Backup> getBackupList() {
-        return entityManager.createQuery("select b from Backup b").getResultList();
+        return entityManager.createQuery("select b from Backup b", Backup.class).getResultList();
     }
 
     @Override
     public LocalRecord getLocalRecord(Backup backup, Path p) {
-        // the same path might be in multiple backup sets - we should ensure we are looking at the right one
-        try {
-            return (LocalRecord) entityManager
-                    .createQuery("select r from LocalRecord r where r.filePath = :filePath and r.backup = :backup")
-                    .setParameter("filePath", p.toString())
+        // the same path might be in multiple backup sets, so we look in the index for the right one. Only records that
+        // exist cost a (primary key) database lookup
+        long id = getRecordIndex(backup).getId(p);
+        return id == RecordIndex.NOT_FOUND ? null : entityManager.find(LocalRecord.class, id);
+    }
+
+    @Override
+    public RecordIndex getRecordIndex(Backup backup) {
+        return recordIndexes.computeIfAbsent(backup.getId(), id -> loadRecordIndex(backup));
+    }
+
+    /*
+     * Builds the index with a projection query, so that we never create entity objects for records we don't touch.
+     */
+    private RecordIndex loadRecordIndex(Backup backup) {
+        long count = entityManager.createQuery("select count(r) from LocalRecord r where r.backup = :backup", Long.class)
+                .setParameter("backup", backup)
+                .getSingleResult();
+
+        // the directories are already loaded, so they come back as the backup's own nodes
+        RecordIndex index = new RecordIndex(backup.getDirectories(), (int) count);
+        entityManager.createQuery("select r.directory, r.fileName, r.lastModifiedTime, r.size, r.id from LocalRecord r where r.backup = :backup", Object[].class)
+                .setParameter("backup", backup)
+                .getResultStream()
+                .forEach(row -> index.put((Directory) row[0], (String) row[1], (Long) row[2], (Long) row[3], (Long) row[4]));
+        entityManager.createQuery("select distinct r.size from LocalRecord r where r.backup = :backup and r.contentHash is not null", Long.class)
+                .setParameter("backup", backup)
+                .getResultStream()
+                .forEach(index::addContentSize);
+        return index;
+    }
+
+    @Override
+    public LocalRecord getLocalRecordByContentHash(String contentHash) {
+        List<LocalRecord> records = entityManager
+                .createQuery("select r from LocalRecord r where r.contentHash = :contentHash", LocalRecord.class)
+                .setParameter("contentHash", contentHash)
+                .setMaxResults(1)
+                .getResultList();
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    @Override
+    public boolean hasContentOfSize(long size) {
+        // asked for every file the checks look at, so it is answered from memory
+        return recordIndexes.values().stream().anyMatch(index -> index.hasContentOfSize(size));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateLocalRecord(Backup backup, LocalRecord record) {
+        return transact(() -> {
+            storeDirectory(record.getDirectory());
+            if (entityManager.contains(record)) {
+                // changes to a stored record are picked up when the transaction commits
+                return;
+            }
+
+            // a path only ever has one record, so a new one replaces any that was stored for the path meanwhile
+            LocalRecord existing = getLocalRecord(backup, record.getPath());
+            if (existing != null && !existing.getId().equals(record.getId())) {
+                entityManager.remove(existing);
+            }
+            if (record.getId() == null) {
+                entityManager.persist(record);
+            } else {
+                // detached by a rollback
+                entityManager.merge(record);
+            }
+        }, () -> getRecordIndex(backup).put(record));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteLocalRecord(LocalRecord record) {
+        return transact(() -> remove(record),
+                () -> getRecordIndex(record.getBackup()).remove(record.getPath()));
+    }
+
+    @Override
+    public List<LocalRecord> getLocalRecordsUnder(Backup backup, Path directory) {
+        // the records under a directory are those in it or in any of its sub-directories. Directories that have never
+        // been stored can't have records in them
+        List<Directory> directories = backup.getDirectories().getSubtree(directory).stream()
+                .filter(d -> d.getId() != null)
+                .collect(Collectors.toList());
+
+        List<LocalRecord> records = new ArrayList<>();
+        for (int i = 0; i < directories.size(); i += MAX_IN_LIST) {
+            records.addAll(entityManager
+                    .createQuery("select r from LocalRecord r where r.backup = :backup and r.directory in :directories", LocalRecord.class)
                     .setParameter("backup", backup)
-                    .getSingleResult();
-        } catch (NoResultException e) {
-            return null;
+                    .setParameter("directories", directories.subList(i, Math.min(i + MAX_IN_LIST, directories.size())))
+                    .getResultList());
         }
+        return records;
     }
 
     @Override
-    public void updateLocalRecord(Backup backup, LocalRecord record) {
-        transact(() -> {
-            final boolean added = backup.addRecord(record);
-            if (added) {
-                entityManager.persist(backup);
-            }
+    public CompletableFuture<Void> deleteLocalRecords(Backup backup, List<LocalRecord> records) {
+        return transact(() -> records.forEach(this::remove), () -> {
+            RecordIndex index = getRecordIndex(backup);
+            records.forEach(record -> index.remove(record.getPath()));
         });
     }
 
     @Override
-    public void deleteLocalRecord(LocalRecord record) {
-        transact(() -> {
-            record.getBackup().removeRecord(record);
-            entityManager.persist(record.getBackup());
-            entityManager.remove(record);
+    public Map<String, DirectorySummary> getDirectorySummaries(Backup backup) {
+        return entityManager.createQuery("select s from DirectorySummary s where s.backup = :backup", DirectorySummary.class)
+                .setParameter("backup", backup)
+                .getResultStream()
+                .collect(Collectors.toMap(DirectorySummary::getDirectoryPath, s -> s));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateDirectorySummary(DirectorySummary summary) {
+        return transact(() -> save(summary, summary.getId()));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteDirectorySummary(DirectorySummary summary) {
+        return transact(() -> remove(summary));
+    }
+
+    @Override
+    public CompletableFuture<Void> updatePack(Pack pack) {
+        return transact(() -> save(pack, pack.getId()));
+    }
+
+    @Override
+    public CompletableFuture<Void> deletePack(Pack pack) {
+        return transact(() -> remove(pack));
+    }
+
+    @Override
+    public CompletableFuture<Void> releasePackBytes(Pack pack, long length) {
+        // applied on the writer thread, so concurrent releases against the same pack can't lose an update. The new
+        // value is worked out the first time the change runs, so that running it again after a rollback doesn't
+        // release the bytes twice
+        long[] liveBytes = { Long.MIN_VALUE };
+        return transact(() -> {
+            if (liveBytes[0] == Long.MIN_VALUE) {
+                liveBytes[0] = pack.getLiveBytes() - length;
+            }
+            pack.setLiveBytes(liveBytes[0]);
+            save(pack, pack.getId());
         });
     }
 
+    @Override
+    public List<Pack> getSparsePacks(Backup backup, double maxLiveRatio) {
+        return entityManager.createQuery("select p from Pack p where p.backup = :backup and p.liveBytes < p.totalBytes * :ratio", Pack.class)
+                .setParameter("backup", backup)
+                .setParameter("ratio", maxLiveRatio)
+                .getResultList();
+    }
+
+    @Override
+    public List<LocalRecord> getPackRecords(Pack pack) {
+        return entityManager.createQuery("select r from LocalRecord r where r.pack = :pack", LocalRecord.class)
+                .setParameter("pack", pack)
+                .getResultList();
+    }
+
     @Override
     public Stream<LocalRecord> getBackupRecords(Backup backup) {
         return entityManager.createQuery("select r from LocalRecord r where r.backup = :backup", LocalRecord.class)
@@ -110,11 +343,56 @@ public class JPADataStore implements DataStore {
                 .getResultStream();
     }
 
-    private void transact(Runnable r) {
-        dbThread.submit(() -> {
-            entityManager.getTransaction().begin();
-            r.run();
-            entityManager.getTransaction().commit();
-        });
+    /*
+     * Changes to a stored entity are picked up when the transaction commits, as long as it is still managed - a
+     * rollback detaches every entity, so after one it has to be merged. New entities need persisting.
+     */
+    private void save(Object entity, Object id) {
+        if (id == null) {
+            entityManager.persist(entity);
+        } else if (!entityManager.contains(entity)) {
+            entityManager.merge(entity);
+        }
+    }
+
+    /*
+     * Directories are shared by all of the records in them, so are stored along with the first of them. A directory
+     * with an id may only have been stored in a transaction that was rolled back, so the database has the final say.
+     */
+    private void storeDirectory(Directory directory) {
+        if (directory == null || entityManager.contains(directory)) {
+            return;
+        }
+        if (directory.getId() != null && entityManager.find(Directory.class, directory.getId()) != null) {
+            return;
+        }
+        storeDirectory(directory.getParent());
+        entityManager.persist(directory);
+    }
+
+    /*
+     * Removes the entity, which may have been detached by a rollback, or be gone already.
+     */
+    private void remove(Object entity) {
+        if (entityManager.contains(entity)) {
+            entityManager.remove(entity);
+            return;
+        }
+        Object id = factory.getPersistenceUnitUtil().getIdentifier(entity);
+        Object managed = id == null ? null : entityManager.find(entity.getClass(), id);
+        if (managed != null) {
+            entityManager.remove(managed);
+        }
+    }
+
+    private CompletableFuture<Void> transact(Runnable r) {
+        return transact(r, null);
+    }
+
+    /*
+     * onCommit is run on the writer thread once the transaction has committed - new records only have an id from then on.
+     */
+    private CompletableFuture<Void> transact(Runnable r, Runnable onCommit) {
+        return writer.submit(r, onCommit);
     }
 }
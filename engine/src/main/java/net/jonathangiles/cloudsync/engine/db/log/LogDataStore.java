@@ -0,0 +1,916 @@
+package net.jonathangiles.cloudsync.engine.db.log;
+
+import net.jonathangiles.cloudsync.engine.db.DataStore;
+import net.jonathangiles.cloudsync.engine.db.RecordIndex;
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.DirectorySummary;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.model.Pack;
+import net.jonathangiles.cloudsync.engine.util.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link DataStore} built for the way the engine uses records - point lookups, upserts and deletes by (backup, path),
+ * and scans of a backup in path order - rather than on a general purpose database. It is a small log-structured store:
+ * <ul>
+ *     <li>every change is appended to a log, and changes arriving together are made durable with one fsync</li>
+ *     <li>recent record changes are also kept, sorted, in memory</li>
+ *     <li>everything older is in a {@link SortedTable} - an immutable file sorted by key, read through memory mappings
+ *     and binary searched, so looking a record up never needs it to be in the heap</li>
+ *     <li>once enough changes build up in memory, they are merged with the table into a new one in the background, and
+ *     the logs they came from are deleted</li>
+ * </ul>
+ *
+ * <p>Backups, packs and directory summaries are few, so they are kept in memory in full and written alongside each table.
+ */
+@Singleton
+public class LogDataStore implements DataStore {
+
+    private static final byte PUT_RECORD = 1;
+    private static final byte DELETE_RECORD = 2;
+    private static final byte PUT_BACKUP = 3;
+    private static final byte DELETE_BACKUP = 4;
+    private static final byte PUT_PACK = 5;
+    private static final byte DELETE_PACK = 6;
+    private static final byte PUT_SUMMARY = 7;
+    private static final byte DELETE_SUMMARY = 8;
+    private static final byte NEXT_ID = 9;
+
+    // marks a deleted record in a memtable, hiding any older version in the table
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private static final String CURRENT = "CURRENT";
+
+    private final Config config;
+    private final Metrics metrics;
+    private final Path directory;
+    private final long compactionThreshold;
+    private final long commitIntervalNanos;
+    private final int batchSize;
+
+    // ids for every kind of object come from one sequence, which is stored so that ids are never reused
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    private final Map<Long, Backup> backups = new ConcurrentHashMap<>();
+    private final Map<Long, Pack> packs = new ConcurrentHashMap<>();
+    private final Map<Long, DirectorySummary> summaries = new ConcurrentHashMap<>();
+
+    // lookups go to the active memtable, then the one being compacted (if any), then the table
+    private volatile MemTable active = new MemTable();
+    private volatile MemTable compacting;
+    private volatile SortedTable table = SortedTable.empty();
+
+    // only used by the writer thread (or during startup)
+    private FileChannel log;
+    private long logNumber;
+    private final ByteArrayOutputStream pendingLog = new ByteArrayOutputStream();
+
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "db-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // record index for each backup, keyed by backup id
+    private final Map<Long, RecordIndex> recordIndexes = new ConcurrentHashMap<>();
+
+    @Inject
+    public LogDataStore(Config config, Metrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.directory = config.getLogDataStoreDirectory() != null
+                ? Paths.get(config.getLogDataStoreDirectory())
+                : Paths.get(System.getProperty("derby.system.home", "."), "db", "records");
+        this.compactionThreshold = config.getLogCompactionThreshold();
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getDbCommitInterval());
+        this.batchSize = config.getDbCommitBatchSize();
+
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the data store in " + directory, e);
+        }
+
+        Thread writer = new Thread(this::writeLoop, "db-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        init();
+    }
+
+    /*
+     * Loads the latest table and the objects written with it, then replays every log written since.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+
+        long generation = 0;
+        Path current = directory.resolve(CURRENT);
+        if (Files.exists(current)) {
+            generation = Long.parseLong(new String(Files.readAllBytes(current), StandardCharsets.UTF_8).trim());
+            table = SortedTable.open(directory, generation);
+            replay(entitiesFile(generation), active);
+        }
+
+        // anything else left behind by a compaction that didn't finish
+        deleteFiles(generation);
+
+        List<Long> logs = listLogs();
+        for (long number : logs) {
+            if (number > generation) {
+                replay(logFile(number), active);
+            }
+        }
+
+        logNumber = Math.max(generation, logs.isEmpty() ? 0 : logs.get(logs.size() - 1)) + 1;
+        log = openLog(logNumber);
+
+        System.out.println("Opened data store in " + directory + " (" + table.count() + " records in the table, "
+                + active.count.get() + " changes since)");
+    }
+
+    private void init() {
+        // get the configured backup sets from the local Config file
+        // and the backups that have previously been stored, and reconcile them, as the JPA store does
+        List<CompletableFuture<Void>> changes = new ArrayList<>();
+
+        // step one: see if there is a stored backup for a given config file, and if not, add one
+        config.getBackupConfig().forEach(backupConfig -> {
+            boolean exists = backups.values().stream().anyMatch(backup -> Config.BackupConfig.match(backupConfig, backup));
+            if (!exists) {
+                changes.add(submit(() -> {
+                    Backup backup = new Backup(backupConfig.getName(), Paths.get(backupConfig.getRoot()));
+                    backup.setId(nextId.getAndIncrement());
+                    putBackup(backup);
+                }, null));
+            }
+        });
+
+        // step two: see if there are stored backups that don't exist in the config, and remove them. Their records are
+        // left for compaction to drop
+        new ArrayList<>(backups.values()).forEach(backup -> {
+            boolean noMatch = config.getBackupConfig().noneMatch(backupConfig -> Config.BackupConfig.match(backupConfig, backup));
+            if (noMatch) {
+                changes.add(submit(() -> {
+                    summaries.values().stream().filter(s -> s.getBackup() == backup).collect(Collectors.toList()).forEach(this::removeSummary);
+                    packs.values().stream().filter(p -> p.getBackup() == backup).collect(Collectors.toList()).forEach(this::removePack);
+                    backups.remove(backup.getId());
+                    append(DELETE_BACKUP, RecordCodec.encodeKey(backup.getId(), ""));
+                }, null));
+            }
+        });
+
+        // make sure the backup list is up to date before anyone asks for it
+        CompletableFuture.allOf(changes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    @Override
+    public List<Backup> getBackupList() {
+        return new ArrayList<>(backups.values());
+    }
+
+    @Override
+    public LocalRecord getLocalRecord(Backup backup, Path p) {
+        ByteBuffer record = find(backup.getId(), p.toString());
+        return record == null ? null : decode(record);
+    }
+
+    @Override
+    public RecordIndex getRecordIndex(Backup backup) {
+        return recordIndexes.computeIfAbsent(backup.getId(), id -> loadRecordIndex(backup));
+    }
+
+    private RecordIndex loadRecordIndex(Backup backup) {
+        RecordIndex index = new RecordIndex(backup.getDirectories());
+        getBackupRecords(backup).forEach(index::put);
+        return index;
+    }
+
+    @Override
+    public LocalRecord getLocalRecordByContentHash(String contentHash) {
+        // recent changes first - the index in each memtable may be out of date, so the record is looked up again
+        for (MemTable memTable : memTables()) {
+            RecordKey key = memTable.byContentHash.get(contentHash);
+            if (key != null) {
+                LocalRecord record = findWithContentHash(key.backupId, key.path, contentHash);
+                if (record != null) {
+                    return record;
+                }
+            }
+        }
+
+        // then the table, skipping any record that has changed since
+        Iterator<ByteBuffer> candidates = table.findByContentHash(contentHash);
+        while (candidates.hasNext()) {
+            ByteBuffer candidate = candidates.next();
+            if (contentHash.equals(RecordCodec.getContentHash(candidate))) {
+                LocalRecord record = findWithContentHash(RecordCodec.getBackupId(candidate), RecordCodec.getPath(candidate), contentHash);
+                if (record != null) {
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    private LocalRecord findWithContentHash(long backupId, String path, String contentHash) {
+        // records of a removed backup stay around until compaction, and can't be decoded without it
+        if (!backups.containsKey(backupId)) {
+            return null;
+        }
+        ByteBuffer current = find(backupId, path);
+        if (current == null || !contentHash.equals(RecordCodec.getContentHash(current))) {
+            return null;
+        }
+        return decode(current);
+    }
+
+    @Override
+    public boolean hasContentOfSize(long size) {
+        // false positives only cost the caller a hash, so stale memtable entries don't matter
+        for (MemTable memTable : memTables()) {
+            if (memTable.sizes.contains(size)) {
+                return true;
+            }
+        }
+        return table.hasContentOfSize(size);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateLocalRecord(Backup backup, LocalRecord record) {
+        return submit(() -> {
+            if (record.getId() == null) {
+                record.setId(nextId.getAndIncrement());
+            }
+            byte[] encoded = RecordCodec.encode(record);
+            active.put(new RecordKey(backup.getId(), record.getFilePath()), encoded, record);
+            append(PUT_RECORD, encoded);
+        }, () -> getRecordIndex(backup).put(record));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteLocalRecord(LocalRecord record) {
+        Backup backup = record.getBackup();
+        return submit(() -> {
+            active.delete(new RecordKey(backup.getId(), record.getFilePath()));
+            append(DELETE_RECORD, RecordCodec.encodeKey(backup.getId(), record.getFilePath()));
+        }, () -> getRecordIndex(backup).remove(record.getPath()));
+    }
+
+    @Override
+    public List<LocalRecord> getLocalRecordsUnder(Backup backup, Path directory) {
+        // every path under the directory sorts between its prefix and the character after the separator
+        char separator = directory.getFileSystem().getSeparator().charAt(0);
+        Iterator<ByteBuffer> records = merge(backup.getId(), directory.toString() + separator, directory.toString() + (char) (separator + 1));
+        List<LocalRecord> result = new ArrayList<>();
+        records.forEachRemaining(record -> result.add(decode(record)));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteLocalRecords(Backup backup, List<LocalRecord> records) {
+        return submit(() -> {
+            for (LocalRecord record : records) {
+                active.delete(new RecordKey(backup.getId(), record.getFilePath()));
+                append(DELETE_RECORD, RecordCodec.encodeKey(backup.getId(), record.getFilePath()));
+            }
+        }, () -> {
+            RecordIndex index = getRecordIndex(backup);
+            records.forEach(record -> index.remove(record.getPath()));
+        });
+    }
+
+    @Override
+    public Stream<LocalRecord> getBackupRecords(Backup backup) {
+        Iterator<ByteBuffer> records = merge(backup.getId());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .map(this::decode);
+    }
+
+    @Override
+    public Map<String, DirectorySummary> getDirectorySummaries(Backup backup) {
+        return summaries.values().stream()
+                .filter(s -> s.getBackup().getId().equals(backup.getId()))
+                .collect(Collectors.toMap(DirectorySummary::getDirectoryPath, s -> s));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateDirectorySummary(DirectorySummary summary) {
+        return submit(() -> {
+            if (summary.getId() == null) {
+                summary.setId(nextId.getAndIncrement());
+            }
+            putSummary(summary);
+        }, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteDirectorySummary(DirectorySummary summary) {
+        return submit(() -> removeSummary(summary), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> updatePack(Pack pack) {
+        return submit(() -> {
+            if (pack.getId() == null) {
+                pack.setId(nextId.getAndIncrement());
+            }
+            putPack(pack);
+        }, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deletePack(Pack pack) {
+        return submit(() -> removePack(pack), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> releasePackBytes(Pack pack, long length) {
+        // applied on the writer thread, so concurrent releases against the same pack can't lose an update
+        return submit(() -> {
+            pack.setLiveBytes(pack.getLiveBytes() - length);
+            putPack(pack);
+        }, null);
+    }
+
+    @Override
+    public List<Pack> getSparsePacks(Backup backup, double maxLiveRatio) {
+        return packs.values().stream()
+                .filter(p -> p.getBackup().getId().equals(backup.getId()) && p.getLiveBytes() < p.getTotalBytes() * maxLiveRatio)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<LocalRecord> getPackRecords(Pack pack) {
+        // packs are compacted rarely, so a scan of the backup is cheaper than keeping another index up to date
+        return getBackupRecords(pack.getBackup())
+                .filter(r -> r.getPack() != null && r.getPack().getId().equals(pack.getId()))
+                .collect(Collectors.toList());
+    }
+
+    /*
+     * The methods below are called on the writer thread, and append to the log as well as changing the in-memory state.
+     */
+
+    private void putBackup(Backup backup) {
+        backups.put(backup.getId(), backup);
+        append(PUT_BACKUP, RecordCodec.encode(backup));
+    }
+
+    private void putSummary(DirectorySummary summary) {
+        summaries.put(summary.getId(), summary);
+        append(PUT_SUMMARY, RecordCodec.encode(summary));
+    }
+
+    private void removeSummary(DirectorySummary summary) {
+        summaries.remove(summary.getId());
+        append(DELETE_SUMMARY, RecordCodec.encodeKey(summary.getId(), ""));
+    }
+
+    private void putPack(Pack pack) {
+        packs.put(pack.getId(), pack);
+        append(PUT_PACK, RecordCodec.encode(pack));
+    }
+
+    private void removePack(Pack pack) {
+        packs.remove(pack.getId());
+        append(DELETE_PACK, RecordCodec.encodeKey(pack.getId(), ""));
+    }
+
+    private void append(byte type, byte[] payload) {
+        try {
+            writeEntry(new DataOutputStream(pendingLog), type, payload);
+        } catch (IOException e) {
+            // we are only writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CompletableFuture<Void> submit(Runnable change, Runnable onCommit) {
+        Change c = new Change(change, onCommit);
+        changes.add(c);
+        return c.future;
+    }
+
+    /*
+     * Changes are grouped the same way as in the JPA store: the log is forced once for every change that arrives
+     * within the commit interval, up to the batch size.
+     */
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(changes.take());
+                long deadline = System.nanoTime() + commitIntervalNanos;
+                while (batch.size() < batchSize) {
+                    Change c = changes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (c == null) {
+                        break;
+                    }
+                    batch.add(c);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            commit(batch);
+            batch.clear();
+
+            if (active.count.get() >= compactionThreshold && compacting == null) {
+                startCompaction();
+            }
+        }
+    }
+
+    private void commit(List<Change> batch) {
+        long start = System.nanoTime();
+        List<Change> applied = new ArrayList<>(batch.size());
+        for (Change c : batch) {
+            try {
+                c.change.run();
+                applied.add(c);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                c.future.completeExceptionally(e);
+            }
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(pendingLog.toByteArray());
+            pendingLog.reset();
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+            metrics.commitCompleted(System.nanoTime() - start);
+        } catch (IOException e) {
+            e.printStackTrace();
+            for (Change c : applied) {
+                c.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (Change c : applied) {
+            try {
+                if (c.onCommit != null) {
+                    c.onCommit.run();
+                }
+                c.future.complete(null);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                c.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /*
+     * Called on the writer thread. The active memtable is frozen and a new log started, then the frozen memtable is
+     * merged with the table in the background while writes carry on into the new memtable.
+     */
+    private void startCompaction() {
+        long generation = logNumber;
+        byte[] entities = encodeEntities();
+        try {
+            log.close();
+            logNumber++;
+            log = openLog(logNumber);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        MemTable frozen = active;
+        compacting = frozen;
+        active = new MemTable();
+        compactor.execute(() -> compact(generation, entities, frozen));
+    }
+
+    private void compact(long generation, byte[] entities, MemTable frozen) {
+        long start = System.nanoTime();
+        SortedTable previous = table;
+        try {
+            SortedTable compacted = SortedTable.write(directory, generation, new MergeIterator(previous.scanAll(),
+                    frozen.records.entrySet().iterator(), true));
+
+            Path entitiesFile = entitiesFile(generation);
+            Files.write(entitiesFile, entities);
+            try (FileChannel channel = FileChannel.open(entitiesFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+
+            // the new table takes over once CURRENT names it - until then, a restart recovers from the old table and logs
+            Path temp = directory.resolve(CURRENT + ".tmp");
+            Files.write(temp, Long.toString(generation).getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, directory.resolve(CURRENT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            table = compacted;
+            compacting = null;
+            previous.close();
+            deleteFiles(generation);
+
+            System.out.println("Compacted data store to " + compacted.count() + " records in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        } catch (IOException | RuntimeException e) {
+            // the frozen memtable stays in use, and its log is still there for recovery - but we won't try again until
+            // a restart, rather than failing over and over
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Backups, packs and summaries as they are now, in log form, to be written alongside the table.
+     */
+    private byte[] encodeEntities() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (Backup backup : backups.values()) {
+                writeEntry(out, PUT_BACKUP, RecordCodec.encode(backup));
+            }
+            for (Pack pack : packs.values()) {
+                writeEntry(out, PUT_PACK, RecordCodec.encode(pack));
+            }
+            for (DirectorySummary summary : summaries.values()) {
+                writeEntry(out, PUT_SUMMARY, RecordCodec.encode(summary));
+            }
+            writeEntry(out, NEXT_ID, RecordCodec.encodeKey(nextId.get(), ""));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Applies the entries in a log (or entities file) to the in-memory state. A log that was cut short by a crash just
+     * ends early - the change in the torn entry was never reported as durable.
+     */
+    private void replay(Path file, MemTable memTable) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream data = new DataInputStream(in);
+            while (true) {
+                byte type;
+                byte[] payload;
+                try {
+                    int length = data.readInt();
+                    long crc = data.readLong();
+                    type = data.readByte();
+                    if (length < 0) {
+                        throw new EOFException();
+                    }
+                    payload = new byte[length];
+                    data.readFully(payload);
+
+                    CRC32 check = new CRC32();
+                    check.update(type);
+                    check.update(payload);
+                    if (check.getValue() != crc) {
+                        System.out.println("Damaged entry in " + file + " - ignoring the rest of it");
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+                apply(type, ByteBuffer.wrap(payload), memTable);
+            }
+        }
+    }
+
+    private void apply(byte type, ByteBuffer payload, MemTable memTable) {
+        switch (type) {
+            case PUT_RECORD: {
+                LocalRecord record = decode(payload.duplicate());
+                seeId(record.getId());
+                memTable.put(new RecordKey(RecordCodec.getBackupId(payload), record.getFilePath()), toArray(payload), record);
+                break;
+            }
+            case DELETE_RECORD:
+                memTable.delete(RecordCodec.decodeKey(payload));
+                break;
+            case PUT_BACKUP: {
+                Backup backup = RecordCodec.decodeBackup(payload);
+                seeId(backup.getId());
+                backups.put(backup.getId(), backup);
+                break;
+            }
+            case DELETE_BACKUP:
+                backups.remove(payload.getLong());
+                break;
+            case PUT_PACK: {
+                Pack pack = RecordCodec.decodePack(payload, backups::get);
+                seeId(pack.getId());
+                Pack existing = packs.get(pack.getId());
+                if (existing != null) {
+                    // keep the same object, as records already point at it
+                    existing.setLiveBytes(pack.getLiveBytes());
+                    existing.setTotalBytes(pack.getTotalBytes());
+                    existing.setBlobName(pack.getBlobName());
+                } else {
+                    packs.put(pack.getId(), pack);
+                }
+                break;
+            }
+            case DELETE_PACK:
+                packs.remove(payload.getLong());
+                break;
+            case PUT_SUMMARY: {
+                DirectorySummary summary = RecordCodec.decodeSummary(payload, backups::get);
+                seeId(summary.getId());
+                summaries.put(summary.getId(), summary);
+                break;
+            }
+            case DELETE_SUMMARY:
+                summaries.remove(payload.getLong());
+                break;
+            case NEXT_ID:
+                seeId(payload.getLong() - 1);
+                break;
+            default:
+                throw new IllegalStateException("Unknown log entry type " + type);
+        }
+    }
+
+    private void seeId(long id) {
+        nextId.accumulateAndGet(id + 1, Math::max);
+    }
+
+    private static void writeEntry(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeLong(crc.getValue());
+        out.writeByte(type);
+        out.write(payload);
+    }
+
+    private ByteBuffer find(long backupId, String path) {
+        RecordKey key = new RecordKey(backupId, path);
+        for (MemTable memTable : memTables()) {
+            byte[] record = memTable.records.get(key);
+            if (record != null) {
+                return record == TOMBSTONE ? null : ByteBuffer.wrap(record);
+            }
+        }
+        return table.get(backupId, path);
+    }
+
+    // the memtables to look in, newest first
+    private List<MemTable> memTables() {
+        MemTable activeTable = active;
+        MemTable compactingTable = compacting;
+        return compactingTable == null ? Collections.singletonList(activeTable) : Arrays.asList(activeTable, compactingTable);
+    }
+
+    /*
+     * The current records of the backup in path order - the table, overlaid with the memtables.
+     */
+    private Iterator<ByteBuffer> merge(long backupId) {
+        return merge(table.scan(backupId), new RecordKey(backupId, ""), new RecordKey(backupId + 1, ""));
+    }
+
+    /*
+     * As above, for the paths from the first given path (inclusive) up to the second (exclusive).
+     */
+    private Iterator<ByteBuffer> merge(long backupId, String fromPath, String toPath) {
+        return merge(table.scan(backupId, fromPath, toPath), new RecordKey(backupId, fromPath), new RecordKey(backupId, toPath));
+    }
+
+    private Iterator<ByteBuffer> merge(Iterator<ByteBuffer> tableRecords, RecordKey from, RecordKey to) {
+        List<MemTable> memTables = memTables();
+        TreeMap<RecordKey, byte[]> overlay = new TreeMap<>();
+        for (int i = memTables.size() - 1; i >= 0; i--) {
+            overlay.putAll(memTables.get(i).records.subMap(from, to));
+        }
+
+        MergeIterator merged = new MergeIterator(tableRecords, overlay.entrySet().iterator(), false);
+        return new Iterator<ByteBuffer>() {
+            @Override
+            public boolean hasNext() {
+                return merged.hasNext();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                return ByteBuffer.wrap(merged.next());
+            }
+        };
+    }
+
+    private LocalRecord decode(ByteBuffer record) {
+        return RecordCodec.decodeRecord(record.duplicate(), backups::get, packs::get);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private FileChannel openLog(long number) throws IOException {
+        return FileChannel.open(logFile(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path logFile(long number) {
+        return directory.resolve("log-" + number);
+    }
+
+    private Path entitiesFile(long generation) {
+        return directory.resolve("entities-" + generation);
+    }
+
+    private List<Long> listLogs() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "log-*")) {
+            for (Path file : files) {
+                numbers.add(Long.parseLong(file.getFileName().toString().substring("log-".length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /*
+     * Deletes the tables and entities of other generations, and the logs that the current table already holds.
+     */
+    private void deleteFiles(long generation) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean obsolete;
+                if (name.startsWith("log-")) {
+                    obsolete = Long.parseLong(name.substring("log-".length())) <= generation;
+                } else if (name.startsWith("table-") || name.startsWith("entities-")) {
+                    String number = name.substring(name.indexOf('-') + 1);
+                    int dot = number.indexOf('.');
+                    obsolete = Long.parseLong(dot < 0 ? number : number.substring(0, dot)) != generation;
+                } else {
+                    obsolete = false;
+                }
+
+                if (obsolete) {
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        // a table that is still mapped can't be deleted on some platforms - it goes on the next start
+                        System.out.println("Could not delete " + file + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Recent record changes, sorted by key. Deleted records are kept as tombstones, so that they hide older versions.
+     */
+    private static final class MemTable {
+        private final ConcurrentSkipListMap<RecordKey, byte[]> records = new ConcurrentSkipListMap<>();
+
+        // may be out of date - callers check the record itself
+        private final Map<String, RecordKey> byContentHash = new ConcurrentHashMap<>();
+        private final Set<Long> sizes = ConcurrentHashMap.newKeySet();
+
+        // the skip list's own size() walks every entry
+        private final AtomicLong count = new AtomicLong();
+
+        void put(RecordKey key, byte[] encoded, LocalRecord record) {
+            if (records.put(key, encoded) == null) {
+                count.incrementAndGet();
+            }
+            if (record.getContentHash() != null) {
+                byContentHash.put(record.getContentHash(), key);
+                sizes.add(record.getSize());
+            }
+        }
+
+        void delete(RecordKey key) {
+            if (records.put(key, TOMBSTONE) == null) {
+                count.incrementAndGet();
+            }
+        }
+    }
+
+    /*
+     * Merges records from the table with newer versions from a memtable, both in key order. Where both have a key,
+     * the memtable wins, and tombstones are dropped.
+     */
+    private final class MergeIterator implements Iterator<byte[]> {
+        private final Iterator<ByteBuffer> older;
+        private final Iterator<Map.Entry<RecordKey, byte[]>> newer;
+
+        // compaction also drops records of backups that have been removed
+        private final boolean dropRemovedBackups;
+
+        private ByteBuffer nextOlder;
+        private Map.Entry<RecordKey, byte[]> nextNewer;
+        private byte[] next;
+
+        MergeIterator(Iterator<ByteBuffer> older, Iterator<Map.Entry<RecordKey, byte[]>> newer, boolean dropRemovedBackups) {
+            this.older = older;
+            this.newer = newer;
+            this.dropRemovedBackups = dropRemovedBackups;
+            nextOlder = older.hasNext() ? older.next() : null;
+            nextNewer = newer.hasNext() ? newer.next() : null;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            byte[] result = next;
+            advance();
+            return result;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && (nextOlder != null || nextNewer != null)) {
+                int c;
+                if (nextOlder == null) {
+                    c = 1;
+                } else if (nextNewer == null) {
+                    c = -1;
+                } else {
+                    c = RecordKey.compare(RecordCodec.getBackupId(nextOlder), RecordCodec.getPath(nextOlder),
+                            nextNewer.getKey().backupId, nextNewer.getKey().path);
+                }
+
+                long backupId;
+                byte[] candidate;
+                if (c < 0) {
+                    backupId = RecordCodec.getBackupId(nextOlder);
+                    candidate = toArray(nextOlder);
+                    nextOlder = older.hasNext() ? older.next() : null;
+                } else {
+                    backupId = nextNewer.getKey().backupId;
+                    candidate = nextNewer.getValue();
+                    if (c == 0) {
+                        nextOlder = older.hasNext() ? older.next() : null;
+                    }
+                    nextNewer = newer.hasNext() ? newer.next() : null;
+                }
+
+                if (candidate != TOMBSTONE && !(dropRemovedBackups && !backups.containsKey(backupId))) {
+                    next = candidate;
+                }
+            }
+        }
+    }
+
+    private static class Change {
+        private final Runnable change;
+        private final Runnable onCommit;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Change(Runnable change, Runnable onCommit) {
+            this.change = change;
+            this.onCommit = onCommit;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package net.jonathangiles.cloudsync.engine.db.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file mapped into memory. A single mapping is limited to 2GB, so the file is mapped in chunks - anything
+ * read as one piece (a long, or a whole record) must not cross a {@link #CHUNK_SIZE} boundary.
+ */
+final class MappedFile implements Closeable {
+
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long size;
+
+    MappedFile(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+        chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    int getInt(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    long getLong(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * Returns a view of the given range, which callers are free to move the position of.
+     */
+    ByteBuffer slice(long position, int length) {
+        ByteBuffer buffer = chunks[(int) (position >>> CHUNK_SHIFT)].duplicate();
+        int start = (int) (position & CHUNK_MASK);
+        buffer.limit(start + length);
+        buffer.position(start);
+        return buffer.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings themselves are released when they are garbage collected
+        channel.close();
+    }
+}
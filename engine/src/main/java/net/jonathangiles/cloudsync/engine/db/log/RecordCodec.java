@@ -0,0 +1,222 @@
+package net.jonathangiles.cloudsync.engine.db.log;
+
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.DirectorySummary;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+import net.jonathangiles.cloudsync.engine.model.Pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * The binary form of the model objects in the log and the sorted table. An encoded record starts with its key (backup
+ * id, then path), so that the table can be searched without decoding whole records. Strings are length-prefixed
+ * UTF-8, with a length of -1 for null.
+ */
+final class RecordCodec {
+
+    private static final long NONE = -1;
+
+    private RecordCodec() { }
+
+    static byte[] encode(LocalRecord record) {
+        return encode(out -> {
+            out.writeLong(record.getBackup().getId());
+            writeString(out, record.getFilePath());
+            out.writeLong(record.getId());
+            out.writeLong(record.getLastModifiedTime());
+            out.writeLong(record.getSize());
+            writeString(out, record.getContentHash());
+            writeString(out, record.getCodec());
+            out.writeLong(record.getPack() == null ? NONE : record.getPack().getId());
+            out.writeLong(record.getPackOffset());
+            out.writeLong(record.getPackLength());
+            out.writeInt(record.getBlockIds().size());
+            for (String blockId : record.getBlockIds()) {
+                writeString(out, blockId);
+            }
+        });
+    }
+
+    static LocalRecord decodeRecord(ByteBuffer in, LongFunction<Backup> backups, LongFunction<Pack> packs) {
+        Backup backup = backups.apply(in.getLong());
+        String path = readString(in);
+        long id = in.getLong();
+        long lastModifiedTime = in.getLong();
+        long size = in.getLong();
+
+        LocalRecord record = LocalRecord.of(backup, path, lastModifiedTime, size);
+        record.setId(id);
+        record.setContentHash(readString(in));
+        record.setCodec(readString(in));
+        long packId = in.getLong();
+        record.setPack(packId == NONE ? null : packs.apply(packId));
+        record.setPackOffset(in.getLong());
+        record.setPackLength(in.getLong());
+        int blockCount = in.getInt();
+        List<String> blockIds = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            blockIds.add(readString(in));
+        }
+        record.setBlockIds(blockIds);
+        return record;
+    }
+
+    // the parts of an encoded record that the sorted table indexes
+
+    static long getBackupId(ByteBuffer record) {
+        return record.getLong(record.position());
+    }
+
+    static String getPath(ByteBuffer record) {
+        ByteBuffer in = record.duplicate();
+        in.getLong();
+        return readString(in);
+    }
+
+    static long getSize(ByteBuffer record) {
+        ByteBuffer in = record.duplicate();
+        in.getLong();
+        skipString(in);
+        in.getLong();
+        in.getLong();
+        return in.getLong();
+    }
+
+    static String getContentHash(ByteBuffer record) {
+        ByteBuffer in = record.duplicate();
+        in.getLong();
+        skipString(in);
+        in.position(in.position() + 3 * 8);
+        return readString(in);
+    }
+
+    static long getId(ByteBuffer record) {
+        ByteBuffer in = record.duplicate();
+        in.getLong();
+        skipString(in);
+        return in.getLong();
+    }
+
+    static byte[] encodeKey(long backupId, String path) {
+        return encode(out -> {
+            out.writeLong(backupId);
+            writeString(out, path);
+        });
+    }
+
+    static RecordKey decodeKey(ByteBuffer in) {
+        return new RecordKey(in.getLong(), readString(in));
+    }
+
+    static byte[] encode(Backup backup) {
+        return encode(out -> {
+            out.writeLong(backup.getId());
+            writeString(out, backup.getBackupName());
+            writeString(out, backup.getRootDirectoryString());
+        });
+    }
+
+    static Backup decodeBackup(ByteBuffer in) {
+        long id = in.getLong();
+        Backup backup = new Backup(readString(in), Paths.get(readString(in)));
+        backup.setId(id);
+        return backup;
+    }
+
+    static byte[] encode(Pack pack) {
+        return encode(out -> {
+            out.writeLong(pack.getId());
+            out.writeLong(pack.getBackup().getId());
+            writeString(out, pack.getBlobName());
+            out.writeLong(pack.getTotalBytes());
+            out.writeLong(pack.getLiveBytes());
+        });
+    }
+
+    static Pack decodePack(ByteBuffer in, LongFunction<Backup> backups) {
+        long id = in.getLong();
+        Pack pack = new Pack(backups.apply(in.getLong()), readString(in), in.getLong(), in.getLong());
+        pack.setId(id);
+        return pack;
+    }
+
+    static byte[] encode(DirectorySummary summary) {
+        return encode(out -> {
+            out.writeLong(summary.getId());
+            out.writeLong(summary.getBackup().getId());
+            writeString(out, summary.getDirectoryPath());
+            out.writeLong(summary.getLastModifiedTime());
+            writeString(out, summary.getDigest());
+        });
+    }
+
+    static DirectorySummary decodeSummary(ByteBuffer in, LongFunction<Backup> backups) {
+        long id = in.getLong();
+        DirectorySummary summary = new DirectorySummary(backups.apply(in.getLong()), readString(in), in.getLong(), readString(in));
+        summary.setId(id);
+        return summary;
+    }
+
+    /*
+     * A 64 bit FNV-1a hash of the string, used to index content hashes in a fixed amount of space.
+     */
+    static long fingerprint(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length > 0) {
+            in.position(in.position() + length);
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Writer writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            writer.write(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // we are only writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.jonathangiles.cloudsync.engine.db.log;
+
+/**
+ * Records are keyed, and kept in order, by backup id and then file path - so each backup's records are together, and
+ * in path order.
+ */
+final class RecordKey implements Comparable<RecordKey> {
+
+    final long backupId;
+    final String path;
+
+    RecordKey(long backupId, String path) {
+        this.backupId = backupId;
+        this.path = path;
+    }
+
+    static int compare(long backupId, String path, long otherBackupId, String otherPath) {
+        int c = Long.compare(backupId, otherBackupId);
+        return c != 0 ? c : path.compareTo(otherPath);
+    }
+
+    @Override
+    public int compareTo(RecordKey o) {
+        return compare(backupId, path, o.backupId, o.path);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RecordKey && ((RecordKey) o).backupId == backupId && ((RecordKey) o).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(backupId) * 31 + path.hashCode();
+    }
+}
@@ -0,0 +1,346 @@
+package net.jonathangiles.cloudsync.engine.db.log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of records sorted by {@link RecordKey}, written by compaction and read through memory mappings.
+ * It is made up of four files:
+ * <ul>
+ *     <li>data - each record as a length and its encoded bytes, in key order</li>
+ *     <li>index - the offset of each record in the data file, so records can be binary searched by key</li>
+ *     <li>hashes - (content hash fingerprint, offset) pairs sorted by fingerprint, for finding content by hash</li>
+ *     <li>sizes - the distinct sizes of records with a content hash, sorted</li>
+ * </ul>
+ */
+final class SortedTable implements Closeable {
+
+    private final long generation;
+    private final long count;
+
+    // all null for the empty table
+    private final MappedFile data;
+    private final MappedFile index;
+    private final MappedFile hashes;
+    private final MappedFile sizes;
+
+    private SortedTable(long generation, MappedFile data, MappedFile index, MappedFile hashes, MappedFile sizes) {
+        this.generation = generation;
+        this.data = data;
+        this.index = index;
+        this.hashes = hashes;
+        this.sizes = sizes;
+        this.count = index == null ? 0 : index.size() / 8;
+    }
+
+    static SortedTable empty() {
+        return new SortedTable(0, null, null, null, null);
+    }
+
+    static SortedTable open(Path directory, long generation) throws IOException {
+        return new SortedTable(generation,
+                new MappedFile(file(directory, generation, "data")),
+                new MappedFile(file(directory, generation, "index")),
+                new MappedFile(file(directory, generation, "hashes")),
+                new MappedFile(file(directory, generation, "sizes")));
+    }
+
+    static Path file(Path directory, long generation, String part) {
+        return directory.resolve("table-" + generation + "." + part);
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Returns the encoded record with the given key, or null if there is none.
+     */
+    ByteBuffer get(long backupId, String path) {
+        long i = lowerBound(backupId, path);
+        if (i < count) {
+            ByteBuffer record = record(i);
+            if (RecordCodec.getBackupId(record) == backupId && RecordCodec.getPath(record).equals(path)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the encoded records of the backup, in path order.
+     */
+    Iterator<ByteBuffer> scan(long backupId) {
+        return iterator(lowerBound(backupId, ""), backupId);
+    }
+
+    /**
+     * Returns the encoded records of the backup whose paths are from the first given path (inclusive) up to the second
+     * (exclusive), in path order.
+     */
+    Iterator<ByteBuffer> scan(long backupId, String from, String to) {
+        return iterator(lowerBound(backupId, from), backupId, to);
+    }
+
+    Iterator<ByteBuffer> scanAll() {
+        return iterator(0, -1);
+    }
+
+    /**
+     * Returns the records whose content hash has the same fingerprint as the given one - callers must check the hash
+     * itself.
+     */
+    Iterator<ByteBuffer> findByContentHash(String contentHash) {
+        long fingerprint = RecordCodec.fingerprint(contentHash);
+        long pairs = hashes == null ? 0 : hashes.size() / 16;
+
+        long lo = 0;
+        long hi = pairs;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (hashes.getLong(mid * 16) < fingerprint) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        long first = lo;
+        return new Iterator<ByteBuffer>() {
+            private long i = first;
+
+            @Override
+            public boolean hasNext() {
+                return i < pairs && hashes.getLong(i * 16) == fingerprint;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return recordAt(hashes.getLong(i++ * 16 + 8));
+            }
+        };
+    }
+
+    boolean hasContentOfSize(long size) {
+        long lo = 0;
+        long hi = sizes == null ? 0 : sizes.size() / 8;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            long value = sizes.getLong(mid * 8);
+            if (value == size) {
+                return true;
+            } else if (value < size) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (data != null) {
+            data.close();
+            index.close();
+            hashes.close();
+            sizes.close();
+        }
+    }
+
+    // the position of the first record whose key is not less than the given one
+    private long lowerBound(long backupId, String path) {
+        long lo = 0;
+        long hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            ByteBuffer record = record(mid);
+            long recordBackupId = RecordCodec.getBackupId(record);
+            int c = recordBackupId != backupId
+                    ? Long.compare(recordBackupId, backupId)
+                    : RecordCodec.getPath(record).compareTo(path);
+            if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // iterates from the given position, for as long as records belong to the backup (or to the end, if it is -1)
+    private Iterator<ByteBuffer> iterator(long start, long backupId) {
+        return iterator(start, backupId, null);
+    }
+
+    // as above, stopping at the first path that is not less than the given one, unless it is null
+    private Iterator<ByteBuffer> iterator(long start, long backupId, String to) {
+        return new Iterator<ByteBuffer>() {
+            private long i = start;
+
+            @Override
+            public boolean hasNext() {
+                if (i >= count) {
+                    return false;
+                }
+                ByteBuffer record = record(i);
+                return (backupId == -1 || RecordCodec.getBackupId(record) == backupId)
+                        && (to == null || RecordCodec.getPath(record).compareTo(to) < 0);
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return record(i++);
+            }
+        };
+    }
+
+    private ByteBuffer record(long i) {
+        return recordAt(index.getLong(i * 8));
+    }
+
+    private ByteBuffer recordAt(long offset) {
+        return data.slice(offset + 4, data.getInt(offset));
+    }
+
+    /**
+     * Writes a table from records that are already in key order, and opens it.
+     */
+    static SortedTable write(Path directory, long generation, Iterator<byte[]> records) throws IOException {
+        LongArray hashPairs = new LongArray();
+        LongArray contentSizes = new LongArray();
+
+        try (DataOutputStream data = output(file(directory, generation, "data"));
+             DataOutputStream index = output(file(directory, generation, "index"))) {
+            long offset = 0;
+            while (records.hasNext()) {
+                byte[] record = records.next();
+
+                // a record is read through a single mapping, so it must not cross into the next chunk
+                long remaining = MappedFile.CHUNK_SIZE - (offset & (MappedFile.CHUNK_SIZE - 1));
+                if (remaining < 4 + record.length) {
+                    data.write(new byte[(int) remaining]);
+                    offset += remaining;
+                }
+
+                index.writeLong(offset);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                String contentHash = RecordCodec.getContentHash(buffer);
+                if (contentHash != null) {
+                    hashPairs.add(RecordCodec.fingerprint(contentHash));
+                    hashPairs.add(offset);
+                    contentSizes.add(RecordCodec.getSize(buffer));
+                }
+
+                data.writeInt(record.length);
+                data.write(record);
+                offset += 4 + record.length;
+            }
+        }
+
+        long[] pairs = hashPairs.toArray();
+        sortPairs(pairs, 0, pairs.length / 2 - 1);
+        try (DataOutputStream out = output(file(directory, generation, "hashes"))) {
+            for (long value : pairs) {
+                out.writeLong(value);
+            }
+        }
+
+        long[] distinctSizes = contentSizes.toArray();
+        Arrays.sort(distinctSizes);
+        try (DataOutputStream out = output(file(directory, generation, "sizes"))) {
+            for (int i = 0; i < distinctSizes.length; i++) {
+                if (i == 0 || distinctSizes[i] != distinctSizes[i - 1]) {
+                    out.writeLong(distinctSizes[i]);
+                }
+            }
+        }
+
+        for (String part : new String[] { "data", "index", "hashes", "sizes" }) {
+            try (FileChannel channel = FileChannel.open(file(directory, generation, part), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+        return open(directory, generation);
+    }
+
+    private static DataOutputStream output(Path file) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        return new DataOutputStream(new BufferedOutputStream(out, 1024 * 1024));
+    }
+
+    // sorts (fingerprint, offset) pairs by fingerprint - lo and hi are pair indexes, inclusive
+    private static void sortPairs(long[] a, int lo, int hi) {
+        while (lo < hi) {
+            long pivot = a[2 * ((lo + hi) >>> 1)];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[2 * i] < pivot) {
+                    i++;
+                }
+                while (a[2 * j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            // recurse into the smaller side, so the stack stays shallow
+            if (j - lo < hi - i) {
+                sortPairs(a, lo, j);
+                lo = i;
+            } else {
+                sortPairs(a, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long fingerprint = a[2 * i];
+        long offset = a[2 * i + 1];
+        a[2 * i] = a[2 * j];
+        a[2 * i + 1] = a[2 * j + 1];
+        a[2 * j] = fingerprint;
+        a[2 * j + 1] = offset;
+    }
+
+    // a growable array of longs, without boxing
+    private static final class LongArray {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
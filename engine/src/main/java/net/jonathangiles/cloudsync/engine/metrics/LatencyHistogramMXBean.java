@@ -0,0 +1,16 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+public interface LatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double get50thPercentileMillis();
+
+    double get95thPercentileMillis();
+
+    double get99thPercentileMillis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,210 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+import net.jonathangiles.cloudsync.engine.util.Task;
+
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime metrics for the backup engine, published as JMX MBeans under the {@link #DOMAIN} domain:
+ * <ul>
+ *     <li>type=Sync - totals across all tasks</li>
+ *     <li>type=Tasks,name=&lt;task type&gt; - queued, in-flight, completed and failed tasks</li>
+ *     <li>type=Latency - histograms of task latency (per task type, from queued to finished), cloud request latency,
+ *     database commit latency, and sync lag (from a change being detected to its record being committed)</li>
+ *     <li>type=Rate - bytes uploaded and file system changes</li>
+ * </ul>
+ *
+ * <p>The recording methods are called for every task and request, so they only touch atomics and never allocate.
+ */
+@Singleton
+public class Metrics implements SyncMetricsMXBean {
+
+    public static final String DOMAIN = "net.jonathangiles.cloudsync";
+
+    private final TaskMetrics[] tasks = new TaskMetrics[Task.Type.values().length];
+
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram syncLag = new LatencyHistogram();
+
+    private final RateMeter bytesUploaded = new RateMeter();
+    private final RateMeter fileChanges = new RateMeter();
+
+    private final AtomicLong retriedRequests = new AtomicLong();
+
+    private final AtomicBoolean registered = new AtomicBoolean();
+
+    // MBeans from other parts of the engine, keyed by the rest of their object name
+    private final Map<String, Object> components = new ConcurrentHashMap<>();
+
+    public Metrics() {
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new TaskMetrics();
+        }
+    }
+
+    /**
+     * Publishes the metrics to the platform MBean server. Only the first call does anything.
+     */
+    public void register() {
+        if (!registered.compareAndSet(false, true)) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(DOMAIN + ":type=Sync"));
+            for (Task.Type type : Task.Type.values()) {
+                server.registerMBean(tasks[type.ordinal()], new ObjectName(DOMAIN + ":type=Tasks,name=" + type));
+                server.registerMBean(tasks[type.ordinal()].latency, new ObjectName(DOMAIN + ":type=Latency,name=" + type));
+            }
+            server.registerMBean(requestLatency, new ObjectName(DOMAIN + ":type=Latency,name=CloudRequest"));
+            server.registerMBean(commitLatency, new ObjectName(DOMAIN + ":type=Latency,name=DatabaseCommit"));
+            server.registerMBean(syncLag, new ObjectName(DOMAIN + ":type=Latency,name=SyncLag"));
+            server.registerMBean(bytesUploaded, new ObjectName(DOMAIN + ":type=Rate,name=BytesUploaded"));
+            server.registerMBean(fileChanges, new ObjectName(DOMAIN + ":type=Rate,name=FileChanges"));
+            for (Map.Entry<String, Object> component : components.entrySet()) {
+                server.registerMBean(component.getValue(), new ObjectName(DOMAIN + ":" + component.getKey()));
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds an MBean from elsewhere in the engine, to be published with the rest of the metrics. The name is the key
+     * properties of its object name, e.g. "type=Concurrency,name=Uploads".
+     */
+    public void addComponent(String name, Object mbean) {
+        components.put(name, mbean);
+        if (registered.get()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(DOMAIN + ":" + name));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void taskQueued(Task task) {
+        task.setStatus(Task.Status.QUEUED);
+        task.setQueuedTime(System.nanoTime());
+        tasks[task.getType().ordinal()].queued.incrementAndGet();
+    }
+
+    public void taskStarted(Task task) {
+        task.setStatus(Task.Status.IN_PROGRESS);
+        TaskMetrics metrics = tasks[task.getType().ordinal()];
+        metrics.queued.decrementAndGet();
+        metrics.inFlight.incrementAndGet();
+    }
+
+    public void taskFinished(Task task, boolean succeeded) {
+        task.setStatus(succeeded ? Task.Status.COMPLETE : Task.Status.FAILED);
+        TaskMetrics metrics = tasks[task.getType().ordinal()];
+        metrics.inFlight.decrementAndGet();
+        if (succeeded) {
+            metrics.completed.incrementAndGet();
+        } else {
+            metrics.failed.incrementAndGet();
+        }
+        metrics.latency.record(System.nanoTime() - task.getQueuedTime());
+
+        // copies are done server-side, and deletes send no content
+        if (succeeded && (task.getType() == Task.Type.UPLOAD_FILE || task.getType() == Task.Type.REPLACE_FILE)) {
+            bytesUploaded.mark(task.getRecord().getSize());
+        }
+    }
+
+    /**
+     * The task was dropped before it started, as a newer task for the same path made it pointless.
+     */
+    public void taskSuperseded(Task task) {
+        task.setStatus(Task.Status.SUPERSEDED);
+        TaskMetrics metrics = tasks[task.getType().ordinal()];
+        metrics.queued.decrementAndGet();
+        metrics.superseded.incrementAndGet();
+    }
+
+    public void requestCompleted(long nanos) {
+        requestLatency.record(nanos);
+    }
+
+    public void requestRetried() {
+        retriedRequests.incrementAndGet();
+    }
+
+    public void commitCompleted(long nanos) {
+        commitLatency.record(nanos);
+    }
+
+    public void fileChanged() {
+        fileChanges.mark();
+    }
+
+    /**
+     * Records the lag between a change being detected (at the given System.nanoTime()) and the record of it being
+     * committed, after the cloud copy was updated.
+     */
+    public void changeSynced(long detectedTime) {
+        syncLag.record(System.nanoTime() - detectedTime);
+    }
+
+    @Override
+    public long getQueuedTasks() {
+        long total = 0;
+        for (TaskMetrics t : tasks) {
+            total += t.queued.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getInFlightTasks() {
+        long total = 0;
+        for (TaskMetrics t : tasks) {
+            total += t.inFlight.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        long total = 0;
+        for (TaskMetrics t : tasks) {
+            total += t.completed.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSupersededTasks() {
+        long total = 0;
+        for (TaskMetrics t : tasks) {
+            total += t.superseded.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getFailedTasks() {
+        long total = 0;
+        for (TaskMetrics t : tasks) {
+            total += t.failed.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRetriedRequests() {
+        return retriedRequests.get();
+    }
+}
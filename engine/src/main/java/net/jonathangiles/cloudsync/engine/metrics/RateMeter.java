@@ -0,0 +1,72 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events (or bytes) and reports their rate per second over the last {@link #RATE_WINDOW} seconds. Counts go
+ * into a ring of one-second slots, so recording allocates nothing.
+ */
+public class RateMeter implements RateMeterMXBean {
+
+    private static final int SLOTS = 64;
+    private static final int RATE_WINDOW = 10;
+
+    private final long startTime = System.nanoTime();
+
+    // the second each slot is currently counting, and its count
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotCounts = new AtomicLongArray(SLOTS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long n) {
+        count.addAndGet(n);
+
+        long second = currentSecond();
+        int slot = (int) (second % SLOTS);
+        long slotSecond = slotSeconds.get(slot);
+        if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second)) {
+            // the slot last counted a second that has left the window. A concurrent mark can be lost here, which
+            // only makes the rate approximate - the total count is exact
+            slotCounts.set(slot, 0);
+        }
+        slotCounts.addAndGet(slot, n);
+    }
+
+    private long currentSecond() {
+        // starts at 1, so that an unused slot (second 0) is never mistaken for a current one
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime) + 1;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The average rate over the last complete seconds - the current second is still filling up, so is left out.
+     */
+    @Override
+    public double getRatePerSecond() {
+        long now = currentSecond();
+        long seconds = Math.min(RATE_WINDOW, now - 1);
+        if (seconds <= 0) {
+            return 0;
+        }
+
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long second = slotSeconds.get(i);
+            if (second < now && second >= now - seconds) {
+                total += slotCounts.get(i);
+            }
+        }
+        return total / (double) seconds;
+    }
+}
@@ -0,0 +1,8 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+public interface RateMeterMXBean {
+
+    long getCount();
+
+    double getRatePerSecond();
+}
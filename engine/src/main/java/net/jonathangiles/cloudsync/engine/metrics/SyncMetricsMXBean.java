@@ -0,0 +1,25 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+public interface SyncMetricsMXBean {
+
+    /**
+     * Tasks waiting in the task queue, of every type.
+     */
+    long getQueuedTasks();
+
+    long getInFlightTasks();
+
+    long getCompletedTasks();
+
+    long getFailedTasks();
+
+    /**
+     * Tasks dropped without running, because a newer task for the same path replaced them.
+     */
+    long getSupersededTasks();
+
+    /**
+     * Cloud requests that were retried, because they failed or were throttled.
+     */
+    long getRetriedRequests();
+}
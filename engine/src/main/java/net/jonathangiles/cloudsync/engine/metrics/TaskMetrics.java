@@ -0,0 +1,44 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the tasks of one type in each state. Queued and in-flight are current values, completed, failed and
+ * superseded are totals since startup.
+ */
+public class TaskMetrics implements TaskMetricsMXBean {
+
+    final AtomicLong queued = new AtomicLong();
+    final AtomicLong inFlight = new AtomicLong();
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong superseded = new AtomicLong();
+
+    // from being queued to being finished
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    @Override
+    public long getQueued() {
+        return queued.get();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getSuperseded() {
+        return superseded.get();
+    }
+}
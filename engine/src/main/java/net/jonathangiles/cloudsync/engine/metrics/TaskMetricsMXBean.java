@@ -0,0 +1,17 @@
+package net.jonathangiles.cloudsync.engine.metrics;
+
+public interface TaskMetricsMXBean {
+
+    long getQueued();
+
+    long getInFlight();
+
+    long getCompleted();
+
+    long getFailed();
+
+    /**
+     * Tasks dropped without running, because a newer task for the same path replaced them.
+     */
+    long getSuperseded();
+}
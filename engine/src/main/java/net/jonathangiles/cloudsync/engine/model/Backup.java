@@ -1,17 +1,22 @@
 package net.jonathangiles.cloudsync.engine.model;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Setter;
 
 import javax.persistence.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TreeSet;
 
 @Entity
 @Data
+// records refer back to their backup, so they are left out of equals and hashCode (which would otherwise never end)
+@EqualsAndHashCode(exclude = "records")
 @Table(name="backup")
 public class Backup {
 
@@ -25,14 +30,20 @@ public class Backup {
     private Path rootDirectory;
     private String rootDirectoryString;
 
+    // only mapped so that removing a backup removes its records - it is never loaded otherwise, as that would bring
+    // every record into memory
     @OneToMany(mappedBy = "backup", cascade = CascadeType.ALL)
     private Collection<LocalRecord> records;
 
     @Transient
     private final Map<String, Object> runtimeProperties;
 
+    // transient rather than @Transient, so that it is also left out of equals and hashCode
+    @Setter(AccessLevel.NONE)
+    private transient DirectoryTree directories;
+
     public Backup() {
-        records = new TreeSet<>();
+        records = new ArrayList<>();
         runtimeProperties = new HashMap<>();
     }
 
@@ -54,12 +65,11 @@ public class Backup {
         this.rootDirectoryString = rootDirectory != null ? rootDirectory.toString() : null;
     }
 
-    public boolean addRecord(LocalRecord record) {
-        return records.add(record);
-    }
-
-    public void removeRecord(LocalRecord record) {
-        records.remove(record);
+    public synchronized DirectoryTree getDirectories() {
+        if (directories == null) {
+            directories = new DirectoryTree(this);
+        }
+        return directories;
     }
 
     public <T> T getRuntimeProperty(String key, Class<T> cls) {
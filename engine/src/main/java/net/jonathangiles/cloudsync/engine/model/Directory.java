@@ -0,0 +1,58 @@
+package net.jonathangiles.cloudsync.engine.model;
+
+import lombok.Getter;
+
+import javax.persistence.*;
+import java.nio.file.Path;
+
+/**
+ * A directory in a backup, stored as its own name and a reference to its parent rather than as a full path, so the
+ * shared prefixes of a backup's paths are stored once. The backup's root directory has no parent and an empty name.
+ *
+ * <p>Each directory has a single instance per backup (see {@link DirectoryTree}), so directories are compared by
+ * identity.
+ */
+@Entity
+@Getter
+@Table(name = "directory", indexes = {
+        @Index(columnList = "backup_id")
+})
+public class Directory {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "directory_ids")
+    @TableGenerator(name = "directory_ids", table = "id_sequence", pkColumnName = "SEQ_NAME", valueColumnName = "SEQ_COUNT", allocationSize = 1000)
+    private Long id;
+
+    @ManyToOne
+    private Backup backup;
+
+    @ManyToOne
+    private Directory parent;
+
+    private String name;
+
+    // worked out from the parents the first time it is needed
+    @Transient
+    private Path path;
+
+    protected Directory() { }
+
+    Directory(Backup backup, Directory parent, String name) {
+        this.backup = backup;
+        this.parent = parent;
+        this.name = name;
+    }
+
+    public Path getPath() {
+        if (path == null) {
+            path = parent == null ? backup.getRootDirectory() : parent.getPath().resolve(name);
+        }
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return getPath().toString();
+    }
+}
@@ -0,0 +1,40 @@
+package net.jonathangiles.cloudsync.engine.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/**
+ * What a directory looked like the last time it was known to be fully backed up: its modified time, and a digest of
+ * the name, size and modified time of every entry in it. If both still match at startup, nothing in the directory can
+ * have changed, and the consistency check can skip all per-file work for it.
+ */
+@Entity
+@Data
+@Table(name = "directory_summary")
+public class DirectorySummary {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne
+    private Backup backup;
+
+    private String directoryPath;
+    private long lastModifiedTime;
+    private String digest;
+
+    protected DirectorySummary() { }
+
+    public DirectorySummary(Backup backup, String directoryPath, long lastModifiedTime, String digest) {
+        this.backup = backup;
+        this.directoryPath = directoryPath;
+        this.lastModifiedTime = lastModifiedTime;
+        this.digest = digest;
+    }
+
+    public boolean matches(long lastModifiedTime, String digest) {
+        return this.lastModifiedTime == lastModifiedTime && this.digest != null && this.digest.equals(digest);
+    }
+}
@@ -0,0 +1,75 @@
+package net.jonathangiles.cloudsync.engine.model;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The directories of one backup, with a single {@link Directory} for each path, so that every record in a directory
+ * shares the same node (and its path) rather than holding a copy of the path.
+ */
+public class DirectoryTree {
+
+    private final Backup backup;
+    private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+
+    DirectoryTree(Backup backup) {
+        this.backup = backup;
+    }
+
+    /**
+     * Returns the directory at the given path, creating it (and any of its parents that don't exist yet) if need be.
+     * New directories are not stored until a record in them is.
+     */
+    public Directory intern(Path path) {
+        Directory directory = directories.get(path);
+        return directory != null ? directory : create(path);
+    }
+
+    private synchronized Directory create(Path path) {
+        Directory directory = directories.get(path);
+        if (directory != null) {
+            return directory;
+        }
+
+        Path root = backup.getRootDirectory();
+        if (path.equals(root)) {
+            directory = new Directory(backup, null, "");
+        } else if (path.startsWith(root)) {
+            directory = new Directory(backup, intern(path.getParent()), path.getFileName().toString());
+        } else {
+            throw new IllegalArgumentException(path + " is not in backup '" + backup.getBackupName() + "'");
+        }
+        directories.put(path, directory);
+        return directory;
+    }
+
+    /**
+     * Returns the directory at the given path, or null if nothing has been recorded in it.
+     */
+    public Directory find(Path path) {
+        return directories.get(path);
+    }
+
+    /**
+     * Adds a directory that was loaded from a data store.
+     */
+    public void add(Directory directory) {
+        directories.putIfAbsent(directory.getPath(), directory);
+    }
+
+    /**
+     * Returns the directory at the given path and every directory under it.
+     */
+    public List<Directory> getSubtree(Path path) {
+        List<Directory> subtree = new ArrayList<>();
+        for (Map.Entry<Path, Directory> entry : directories.entrySet()) {
+            if (entry.getKey().startsWith(path)) {
+                subtree.add(entry.getValue());
+            }
+        }
+        return subtree;
+    }
+}
@@ -7,26 +7,71 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 @Entity
 @Data
-@Table(name = "record")
-public class LocalRecord implements Comparable {
+@Table(name = "record", indexes = {
+        @Index(columnList = "directory_id, fileName"),
+        @Index(columnList = "contentHash"),
+        @Index(columnList = "size")
+})
+public class LocalRecord implements Comparable<LocalRecord> {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "record_ids")
+    @TableGenerator(name = "record_ids", table = "id_sequence", pkColumnName = "SEQ_NAME", valueColumnName = "SEQ_COUNT", allocationSize = 1000)
     private Long id;
 
     @ManyToOne
     private Backup backup;
 
-    private String filePath;
+    // the file's path, as the (shared) directory it is in and its name. The data store stores new directories itself,
+    // as a cascade would try to insert again a directory that a rollback has detached
+    @ManyToOne
+    private Directory directory;
+    private String fileName;
+
     private long lastModifiedTime;
     private long size;
 
+    // ids of the content-defined blocks the cloud copy of this file was committed with, in order. Empty when the
+    // file was uploaded in a single request
+    @ElementCollection
+    @CollectionTable(name = "record_block")
+    @OrderColumn
+    private List<String> blockIds = new ArrayList<>();
+
+    // SHA-256 of the content that was last uploaded for this file (see ContentHash), or null if not yet known
+    private String contentHash;
+
+    // the compression codec the cloud copy of this file was written with (see Codecs), or null if uncompressed
+    private String codec;
+
+    // small files may be stored in a pack rather than in a blob of their own, at the given offset and length
+    @ManyToOne
+    private Pack pack;
+    private long packOffset;
+    private long packLength;
+
     protected LocalRecord() { }
 
+    /**
+     * Creates a record from stored values, without looking at the file system - for data stores that don't go through
+     * JPA.
+     */
+    public static LocalRecord of(Backup backup, String filePath, long lastModifiedTime, long size) {
+        LocalRecord r = new LocalRecord();
+        r.backup = backup;
+        r.setPath(Paths.get(filePath));
+        r.lastModifiedTime = lastModifiedTime;
+        r.size = size;
+        return r;
+    }
+
     public static Optional<LocalRecord> create(Backup backup, Path p) {
         try {
             LocalRecord r = new LocalRecord();
@@ -38,6 +83,13 @@ public class LocalRecord implements Comparable {
         }
     }
 
+    /**
+     * Creates a record from attributes that have already been read, so the file isn't looked at again.
+     */
+    public static LocalRecord create(Backup backup, Path p, BasicFileAttributes attributes) {
+        return of(backup, p.toString(), attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
     public void update(Backup backup, Path p) {
         try {
             configure(this, backup, p);
@@ -49,7 +101,7 @@ public class LocalRecord implements Comparable {
     public boolean matches(Path p) {
         try {
             return p != null &&
-                    p.toString().equals(filePath) &&
+                    p.equals(getPath()) &&
                     Files.getLastModifiedTime(p).toMillis() == lastModifiedTime &&
                     Files.size(p) == size;
         } catch (IOException e) {
@@ -60,17 +112,29 @@ public class LocalRecord implements Comparable {
 
     private static void configure(LocalRecord r, Backup backup, Path p) throws IOException {
         r.backup = backup;
-        r.filePath = p.toString();
+        r.setPath(p);
         r.lastModifiedTime = Files.getLastModifiedTime(p).toMillis();
         r.size = Files.size(p);
     }
 
+    /**
+     * Sets the path of the record, without looking at the file system.
+     */
+    public void setPath(Path p) {
+        directory = backup.getDirectories().intern(p.getParent());
+        fileName = p.getFileName().toString();
+    }
+
     public Path getPath() {
-        return Paths.get(filePath);
+        return directory.getPath().resolve(fileName);
+    }
+
+    public String getFilePath() {
+        return getPath().toString();
     }
 
     @Override
-    public int compareTo(Object o) {
-        return filePath.compareTo(((LocalRecord)o).filePath);
+    public int compareTo(LocalRecord o) {
+        return getFilePath().compareTo(o.getFilePath());
     }
 }
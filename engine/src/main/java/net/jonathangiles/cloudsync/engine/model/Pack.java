@@ -0,0 +1,38 @@
+package net.jonathangiles.cloudsync.engine.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/**
+ * A pack is a single blob holding the content of many small files back to back, so that they can be uploaded in one
+ * request. Records that live in a pack point at it with an offset and length. When a packed file is deleted or
+ * replaced its bytes stay in the pack (a tombstone) and only the live byte count goes down - sparse packs are rewritten
+ * by compaction.
+ */
+@Entity
+@Data
+@Table(name = "pack")
+public class Pack {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "pack_ids")
+    @TableGenerator(name = "pack_ids", table = "id_sequence", pkColumnName = "SEQ_NAME", valueColumnName = "SEQ_COUNT", allocationSize = 1000)
+    private Long id;
+
+    @ManyToOne
+    private Backup backup;
+
+    private String blobName;
+    private long totalBytes;
+    private long liveBytes;
+
+    protected Pack() { }
+
+    public Pack(Backup backup, String blobName, long totalBytes, long liveBytes) {
+        this.backup = backup;
+        this.blobName = blobName;
+        this.totalBytes = totalBytes;
+        this.liveBytes = liveBytes;
+    }
+}
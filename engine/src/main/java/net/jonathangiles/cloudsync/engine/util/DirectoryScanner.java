@@ -0,0 +1,162 @@
+package net.jonathangiles.cloudsync.engine.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Walks a directory tree, reporting each directory with the regular files directly inside it and a digest of its
+ * entries. The digest covers the name, size and modified time of each file and the name of each sub-directory, so any
+ * file being added, removed, renamed or modified changes the digest of its directory.
+ *
+ * <p>Directories are walked in parallel on a fork-join pool, one task per directory, so idle threads steal
+ * sub-directories from busy ones however unbalanced the tree is. The attributes of every entry are read exactly once,
+ * and handed to the consumer with each file, so that nothing needs to stat the file again to compare it with its record.
+ * The consumer is called from many threads at once, each running at the priority of the thread that started the scan.
+ */
+public final class DirectoryScanner {
+
+    private DirectoryScanner() { }
+
+    public static void scan(Path root, int parallelism, Consumer<ScannedDirectory> consumer) throws IOException {
+        BasicFileAttributes rootAttributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!rootAttributes.isDirectory()) {
+            throw new IOException(root + " is not a directory");
+        }
+
+        // the scan runs at the priority of whoever started it, so a check in the background stays there
+        int priority = Thread.currentThread().getPriority();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism), p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setPriority(priority);
+            return t;
+        }, null, false);
+        try {
+            pool.invoke(new ScanTask(root, rootAttributes, consumer));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final BasicFileAttributes attributes;
+        private final Consumer<ScannedDirectory> consumer;
+
+        private ScanTask(Path dir, BasicFileAttributes attributes, Consumer<ScannedDirectory> consumer) {
+            this.dir = dir;
+            this.attributes = attributes;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            ScannedDirectory directory = new ScannedDirectory(dir, attributes.lastModifiedTime().toMillis());
+            List<ScanTask> subdirectories = new ArrayList<>();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes entryAttributes;
+                    try {
+                        // links are not followed, as with Files.walkFileTree
+                        entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        // we don't know what this entry looks like, so we can't vouch for the directory it is in
+                        directory.complete = false;
+                        continue;
+                    }
+
+                    if (entryAttributes.isDirectory()) {
+                        directory.addEntry(entry.getFileName().toString(), -1, -1);
+                        ScanTask task = new ScanTask(entry, entryAttributes, consumer);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (entryAttributes.isRegularFile()) {
+                        directory.addFile(entry, entryAttributes);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                e.printStackTrace();
+                directory.complete = false;
+            }
+
+            // this directory's files are dealt with while other threads take its sub-directories
+            consumer.accept(directory);
+
+            for (ScanTask task : subdirectories) {
+                task.join();
+            }
+        }
+    }
+
+    public static class ScannedDirectory {
+        @Getter private final Path path;
+        @Getter private final long lastModifiedTime;
+        @Getter private final List<ScannedFile> files = new ArrayList<>();
+
+        private final List<String> entries = new ArrayList<>();
+        private boolean complete = true;
+
+        private ScannedDirectory(Path path, long lastModifiedTime) {
+            this.path = path;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+
+        private void addFile(Path file, BasicFileAttributes attrs) {
+            files.add(new ScannedFile(file, attrs));
+            addEntry(file.getFileName().toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+
+        private void addEntry(String name, long size, long lastModifiedTime) {
+            entries.add(name + '\0' + size + '\0' + lastModifiedTime);
+        }
+
+        /**
+         * Returns the digest of the directory entries, or null if the directory could not be read in full.
+         */
+        public String getDigest() {
+            if (!complete) {
+                return null;
+            }
+
+            // directory listings come back in no particular order
+            Collections.sort(entries);
+            MessageDigest digest = ContentHash.newDigest();
+            for (String entry : entries) {
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            return ContentHash.toString(digest);
+        }
+    }
+
+    /**
+     * A regular file, with its attributes as they were read during the scan.
+     */
+    @Getter
+    public static class ScannedFile {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        private ScannedFile(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package net.jonathangiles.cloudsync.engine.util;
+
+import net.jonathangiles.cloudsync.engine.util.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the directory trees of every backup with one {@link WatchService}, so the number of threads stays the same
+ * however many backups there are: a single thread takes events from the watch service, and a small fixed pool of
+ * threads hands them to the listeners. Each watched tree is always dispatched to by the same thread of the pool, so its
+ * listener sees its events one at a time and in order.
+ *
+ * <p>Events are coalesced per path: nothing is sent to a listener until a path has been quiet for the configured
+ * period, at which point the whole sequence of events seen for that path is reduced to the single net change (see
+ * {@link PendingEvent#getNetKind()}). A path that never goes quiet, such as a log that is written to all the time, is
+ * sent anyway once its first event has been held back for the maximum delay.
+ *
+ * <p>When the platform's event queue overflows, the events for a directory are lost. Rather than ignore that, the
+ * directory is registered again (to pick up any sub-directories created in the meantime) and its listener is told to
+ * rescan it. Linux reports an overflow on every directory being watched, so overflows are coalesced like any other event,
+ * and only the top-most directories are handed on.
+ */
+@Singleton
+public class DirectoryWatcher implements Closeable {
+
+    /**
+     * Told about the changes in a watched tree.
+     */
+    public interface Listener {
+        void changed(WatchEvent.Kind<?> kind, Path path);
+
+        /**
+         * Events were lost for the directory and everything under it, so it needs to be compared with what is known
+         * about it.
+         */
+        default void overflowed(Path directory) { }
+    }
+
+    private final WatchService watcher;
+    private final long quietPeriod;
+    private final long maxDelay;
+
+    // the directory each key was registered for. Guarded by itself, so that the watch thread can't see a key before the
+    // directory it belongs to is known
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    private final List<WatchedTree> trees = new CopyOnWriteArrayList<>();
+
+    // only touched by the watch thread. Ordered by the time of the last event for each path, so that the paths that are
+    // due are always at the head
+    private final LinkedHashMap<Path, PendingEvent> pending = new LinkedHashMap<>();
+
+    private final ExecutorService[] dispatchers;
+    private int nextDispatcher;
+
+    @Inject
+    public DirectoryWatcher(Config config) throws IOException {
+        this(config.getWatchQuietPeriod(), config.getWatchMaxDelay(), config.getWatchThreads());
+    }
+
+    public DirectoryWatcher(long quietPeriod, long maxDelay, int threads) throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+
+        dispatchers = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < dispatchers.length; i++) {
+            String name = "watch-dispatch-" + i;
+            dispatchers[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, name));
+        }
+
+        new Thread(this::processEvents, "watch").start();
+    }
+
+    /**
+     * Registers the given directory and all its sub-directories, sending their changes to the listener from now on.
+     */
+    public synchronized void watch(Path root, Listener listener) throws IOException {
+        trees.add(new WatchedTree(root, listener, dispatchers[nextDispatcher++ % dispatchers.length]));
+        registerAll(root);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        for (ExecutorService dispatcher : dispatchers) {
+            dispatcher.shutdown();
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        // registering a directory again returns the key it already has
+        synchronized (keys) {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            keys.put(key, dir);
+        }
+    }
+
+    private void registerAll(final Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                // when there are pending events, only wait until the oldest of them is due
+                key = pending.isEmpty() ?
+                        watcher.take() :
+                        watcher.poll(Math.max(0, pending.values().iterator().next().deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException x) {
+                return;
+            }
+
+            if (key != null) {
+                processKey(key);
+            }
+
+            flush(System.currentTimeMillis());
+        }
+    }
+
+    private void processKey(WatchKey key) {
+        Path dir;
+        synchronized (keys) {
+            dir = keys.get(key);
+        }
+        if (dir == null) {
+            return;
+        }
+
+        for (WatchEvent<?> event: key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+
+            if (kind == OVERFLOW) {
+                coalesce(OVERFLOW, dir);
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+
+            // hold the event back until the path has been quiet for a while
+            coalesce(kind, child);
+
+            // a new directory, and any sub-directories it arrived with, need watching too
+            if (kind == ENTRY_CREATE && Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                try {
+                    registerAll(child);
+                } catch (IOException x) {
+                    // it may have gone again already - if not, its creation is still dispatched and it gets scanned
+                    x.printStackTrace();
+                }
+            }
+        }
+
+        // the directory is no longer accessible (it may have been deleted), so there is nothing more to hear from it
+        if (!key.reset()) {
+            synchronized (keys) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    private void coalesce(WatchEvent.Kind<?> kind, Path path) {
+        long now = System.currentTimeMillis();
+
+        // remove and re-add, so that the path moves to the back of the queue with its new deadline. One that has reached
+        // the maximum delay can have an earlier deadline than those ahead of it, so is held back by at most another
+        // quiet period
+        PendingEvent event = pending.remove(path);
+        if (event == null) {
+            event = new PendingEvent();
+            event.firstEventTime = now;
+        }
+        if (kind == OVERFLOW) {
+            event.overflowed = true;
+        } else {
+            if (event.firstKind == null) {
+                event.firstKind = kind;
+            }
+            event.lastKind = kind;
+        }
+        event.deadline = Math.min(now + quietPeriod, event.firstEventTime + maxDelay);
+        pending.put(path, event);
+    }
+
+    /*
+     * Sends the net change for every path whose quiet period ended at or before the given time.
+     */
+    private void flush(long now) {
+        List<Path> overflowed = new ArrayList<>();
+
+        Iterator<Map.Entry<Path, PendingEvent>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, PendingEvent> entry = it.next();
+            PendingEvent event = entry.getValue();
+            if (event.deadline > now) {
+                break;
+            }
+            it.remove();
+
+            if (event.overflowed) {
+                overflowed.add(entry.getKey());
+            }
+            WatchEvent.Kind<?> netKind = event.getNetKind();
+            if (netKind != null) {
+                dispatch(entry.getKey(), tree -> tree.listener.changed(netKind, entry.getKey()));
+            }
+        }
+
+        if (!overflowed.isEmpty()) {
+            rescan(overflowed);
+        }
+    }
+
+    private void rescan(List<Path> overflowed) {
+        // parents sort before their children, so each directory need only be checked against the last one kept
+        Collections.sort(overflowed);
+        List<Path> tops = new ArrayList<>();
+        for (Path dir : overflowed) {
+            if (tops.isEmpty() || !dir.startsWith(tops.get(tops.size() - 1))) {
+                tops.add(dir);
+            }
+        }
+
+        for (Path dir : tops) {
+            System.out.println("Watch events were lost under " + dir + ", rescanning it");
+            try {
+                // directories created while events were being lost were never registered
+                if (Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+                    registerAll(dir);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            dispatch(dir, tree -> tree.listener.overflowed(dir));
+
+            // a tree nested in the overflowed directory lost its events too
+            for (WatchedTree tree : trees) {
+                if (!tree.root.equals(dir) && tree.root.startsWith(dir)) {
+                    tree.dispatcher.execute(() -> notify(tree, t -> t.listener.overflowed(t.root)));
+                }
+            }
+        }
+    }
+
+    /*
+     * Hands the path to every tree it is in, on that tree's dispatch thread.
+     */
+    private void dispatch(Path path, Consumer<WatchedTree> action) {
+        for (WatchedTree tree : trees) {
+            if (path.startsWith(tree.root)) {
+                tree.dispatcher.execute(() -> notify(tree, action));
+            }
+        }
+    }
+
+    private static void notify(WatchedTree tree, Consumer<WatchedTree> action) {
+        try {
+            action.accept(tree);
+        } catch (RuntimeException e) {
+            // one bad event shouldn't stop the rest from being handled
+            e.printStackTrace();
+        }
+    }
+
+    private static class WatchedTree {
+        private final Path root;
+        private final Listener listener;
+        private final ExecutorService dispatcher;
+
+        private WatchedTree(Path root, Listener listener, ExecutorService dispatcher) {
+            this.root = root;
+            this.listener = listener;
+            this.dispatcher = dispatcher;
+        }
+    }
+
+    private static class PendingEvent {
+        // null if the only thing seen for the path was an overflow
+        private WatchEvent.Kind<?> firstKind;
+        private WatchEvent.Kind<?> lastKind;
+        private boolean overflowed;
+        private long firstEventTime;
+        private long deadline;
+
+        /*
+         * Only the first and last events matter: whether the path existed before the sequence started, and whether it
+         * exists now. Returns null if nothing needs to be done (a file that was created and deleted again).
+         */
+        private WatchEvent.Kind<?> getNetKind() {
+            if (firstKind == null) {
+                return null;
+            }
+            if (lastKind == ENTRY_DELETE) {
+                return firstKind == ENTRY_CREATE ? null : ENTRY_DELETE;
+            }
+            return firstKind == ENTRY_DELETE ? ENTRY_MODIFY : firstKind;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package net.jonathangiles.cloudsync.engine.util;
+
+import net.jonathangiles.cloudsync.engine.model.Backup;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs the tasks for any one path strictly one after another, in the order they were submitted, while tasks for
+ * different paths run in parallel. Without this a replace and a later delete of the same file could finish in the
+ * wrong order, or two uploads of it race, leaving the wrong version in the cloud.
+ *
+ * <p>A task that arrives while another for its path is running waits for it. Any upload still waiting when a newer
+ * upload, copy or delete of the same path arrives is stale - the newer task replaces or removes whatever it would
+ * upload - so it is dropped rather than run. At most one upload of a path is therefore ever waiting.
+ *
+ * <p>A task that removes the files under a deleted directory is ordered against the tasks of each of those files, so a
+ * replace of one of them can neither recreate its blob after the delete nor be recorded after it. It runs once it has
+ * reached the front for every file, and holds them all while it runs.
+ *
+ * <p>Paths are tracked in stripes, by the hash of the backup and path, so that tasks for unrelated paths rarely
+ * contend for the same lock.
+ */
+public class KeyedTaskExecutor {
+
+    private static final int STRIPES = 64;
+
+    private final Function<Task, CompletionStage<?>> runner;
+    private final Consumer<Task> onSuperseded;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * The runner starts each task, returning a stage that completes when it has finished. Tasks that are dropped as
+     * stale are handed to onSuperseded instead, and then have their own {@link Task#getOnSuperseded()} run.
+     */
+    public KeyedTaskExecutor(Function<Task, CompletionStage<?>> runner, Consumer<Task> onSuperseded) {
+        this.runner = runner;
+        this.onSuperseded = onSuperseded;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(i);
+        }
+    }
+
+    /**
+     * Returns a stage that completes once the task has run, or has been dropped as stale.
+     */
+    public CompletionStage<?> submit(Task task) {
+        Pending pending = new Pending(task, keys(task));
+        List<Pending> superseded = new ArrayList<>();
+
+        // a task with many paths is queued for all of them at once, holding their stripes in order, so that two such
+        // tasks can never each be waiting behind the other
+        List<Stripe> locks;
+        if (pending.keys.size() == 1) {
+            locks = Collections.singletonList(stripeOf(pending.keys.get(0)));
+        } else {
+            SortedSet<Stripe> sorted = new TreeSet<>(Comparator.comparingInt(stripe -> stripe.index));
+            pending.keys.forEach(key -> sorted.add(stripeOf(key)));
+            locks = new ArrayList<>(sorted);
+        }
+        withLocks(locks, 0, () -> {
+            for (Key key : pending.keys) {
+                Deque<Pending> waiting = stripeOf(key).running.get(key);
+                if (waiting == null) {
+                    // nothing is running for this path
+                    stripeOf(key).running.put(key, new ArrayDeque<>());
+                    pending.reach();
+                    continue;
+                }
+
+                if (supersedes(task)) {
+                    Iterator<Pending> it = waiting.iterator();
+                    while (it.hasNext()) {
+                        Pending p = it.next();
+                        if (isSupersedable(p.task)) {
+                            it.remove();
+                            superseded.add(p);
+                        }
+                    }
+                }
+                waiting.add(pending);
+            }
+        });
+
+        for (Pending p : superseded) {
+            try {
+                onSuperseded.accept(p.task);
+                if (p.task.getOnSuperseded() != null) {
+                    p.task.getOnSuperseded().run();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            p.done.complete(null);
+        }
+
+        // queued for all of its paths now, so it can run once it is at the front for all of them
+        if (pending.reach()) {
+            run(pending);
+        }
+        return pending.done;
+    }
+
+    private void run(Pending pending) {
+        CompletionStage<?> stage;
+        try {
+            stage = runner.apply(pending.task);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            stage = failed;
+        }
+
+        stage.whenComplete((result, e) -> {
+            // the next task for each path starts before this one is reported done, so it can't be overtaken
+            for (Key key : pending.keys) {
+                Stripe stripe = stripeOf(key);
+                Pending next;
+                boolean runNext = false;
+                synchronized (stripe) {
+                    Deque<Pending> waiting = stripe.running.get(key);
+                    next = waiting.poll();
+                    if (next == null) {
+                        stripe.running.remove(key);
+                    } else {
+                        runNext = next.reach();
+                    }
+                }
+                if (runNext) {
+                    run(next);
+                }
+            }
+
+            if (e != null) {
+                pending.done.completeExceptionally(e);
+            } else {
+                pending.done.complete(null);
+            }
+        });
+    }
+
+    /*
+     * The paths a task must be ordered against - the files under a deleted directory, rather than the directory.
+     */
+    private static List<Key> keys(Task task) {
+        if (task.getType() != Task.Type.DELETE_FILES) {
+            return Collections.singletonList(new Key(task.getBackup(), task.getPath()));
+        }
+        // the task cuts its list down as it runs, so the keys are taken now
+        Set<Key> keys = new LinkedHashSet<>();
+        task.getRecords().forEach(record -> keys.add(new Key(task.getBackup(), record.getPath())));
+        return new ArrayList<>(keys);
+    }
+
+    private Stripe stripeOf(Key key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static void withLocks(List<Stripe> locks, int i, Runnable r) {
+        if (i == locks.size()) {
+            r.run();
+            return;
+        }
+        synchronized (locks.get(i)) {
+            withLocks(locks, i + 1, r);
+        }
+    }
+
+    /*
+     * Whether the task makes an earlier upload of its path pointless, because it writes or removes the blob itself.
+     */
+    private static boolean supersedes(Task task) {
+        switch (task.getType()) {
+            case UPLOAD_FILE:
+            case REPLACE_FILE:
+            case COPY_FILE:
+            case DELETE_FILE: return true;
+            default: return false;
+        }
+    }
+
+    /*
+     * Only uploads are dropped. A copy can carry other work with it (a move removes its source once the copy is done),
+     * and a delete removes the record a later upload would otherwise be recorded alongside.
+     */
+    private static boolean isSupersedable(Task task) {
+        return task.getType() == Task.Type.UPLOAD_FILE || task.getType() == Task.Type.REPLACE_FILE;
+    }
+
+    // the paths with a task running, each with the tasks waiting behind it
+    private static class Stripe {
+        private final int index;
+        private final Map<Key, Deque<Pending>> running = new HashMap<>();
+
+        private Stripe(int index) {
+            this.index = index;
+        }
+    }
+
+    private static class Pending {
+        private final Task task;
+        private final List<Key> keys;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // the paths the task has yet to reach the front for, plus one until it has been queued for all of them
+        private final AtomicInteger waiting;
+
+        private Pending(Task task, List<Key> keys) {
+            this.task = task;
+            this.keys = keys;
+            this.waiting = new AtomicInteger(keys.size() + 1);
+        }
+
+        /*
+         * Returns true for exactly one caller - the one that leaves the task waiting for nothing, which must run it.
+         */
+        private boolean reach() {
+            return waiting.decrementAndGet() == 0;
+        }
+    }
+
+    private static class Key {
+        private final Long backupId;
+        private final Path path;
+
+        private Key(Backup backup, Path path) {
+            this.backupId = backup.getId();
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(backupId, other.backupId) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(backupId, path);
+        }
+    }
+}
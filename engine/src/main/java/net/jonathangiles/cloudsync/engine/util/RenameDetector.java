@@ -0,0 +1,229 @@
+package net.jonathangiles.cloudsync.engine.util;
+
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs up the two halves of a rename or move. The watcher sees a move as one path being deleted and another being
+ * created, so the records of deleted files are held here for a short window rather than removed from the cloud
+ * straight away. A new file that turns up within the window with the same size and modified time as one of them (both
+ * of which a move keeps) is the same file, and can take over its cloud copy rather than being uploaded again. Where
+ * several deleted files look the same, the content hash decides between them.
+ *
+ * <p>Records that are not claimed within the window are handed back, grouped by the path whose deletion they came
+ * from, to be removed from the cloud after all. A file that turns up again at the very path it was deleted from (an
+ * editor's atomic save, a checkout) was never really gone, so its record is released instead of being claimed or
+ * handed back.
+ */
+public class RenameDetector {
+
+    /**
+     * Told about the records of a deleted path that were not claimed by a new file.
+     */
+    public interface Listener {
+        void unclaimed(Backup backup, Path deletedPath, List<LocalRecord> records);
+    }
+
+    private final long window;
+    private final Listener listener;
+
+    // deletions in the order they happened, so the ones whose window has passed are always at the head
+    private final Deque<Deletion> deletions = new ArrayDeque<>();
+
+    // the records that can still be claimed, by backup, size and modified time
+    private final Map<Key, List<Candidate>> candidates = new HashMap<>();
+
+    // the same records, by backup and path
+    private final Map<PathKey, Candidate> candidatesByPath = new HashMap<>();
+
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rename-detector");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RenameDetector(long window, Listener listener) {
+        this.window = window;
+        this.listener = listener;
+        long interval = Math.max(100, window / 4);
+        expiry.scheduleWithFixedDelay(this::expire, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Holds the records of the files that were at (or, for a directory, under) the deleted path.
+     */
+    public synchronized void deleted(Backup backup, Path deletedPath, List<LocalRecord> records) {
+        Deletion deletion = new Deletion(backup, deletedPath, System.currentTimeMillis() + window);
+        for (LocalRecord record : records) {
+            Candidate candidate = new Candidate(record);
+            deletion.candidates.add(candidate);
+            candidates.computeIfAbsent(new Key(backup, record.getSize(), record.getLastModifiedTime()), k -> new ArrayList<>())
+                    .add(candidate);
+            candidatesByPath.put(new PathKey(backup, record.getPath()), candidate);
+        }
+        deletions.add(deletion);
+    }
+
+    /**
+     * Returns the record of a recently deleted file that the new file at the given path was moved from, or null if
+     * there is none. A claimed record is never handed back as unclaimed.
+     */
+    public synchronized LocalRecord claim(Backup backup, Path p, long size, long lastModifiedTime) {
+        Key key = new Key(backup, size, lastModifiedTime);
+        List<Candidate> matches = candidates.get(key);
+        if (matches == null) {
+            return null;
+        }
+
+        Candidate match = matches.get(0);
+        if (matches.size() > 1) {
+            // the size and modified time don't tell these apart, so look for the one with the same content
+            String contentHash = ContentHash.of(p).orElse(null);
+            match = matches.stream()
+                    .filter(c -> contentHash != null && contentHash.equals(c.record.getContentHash()))
+                    .findFirst()
+                    .orElse(null);
+            if (match == null) {
+                return null;
+            }
+        }
+
+        take(backup, match);
+        return match.record;
+    }
+
+    /**
+     * Lets go of the record held for the given path, if there is one, as a file exists there again. The record is
+     * neither claimed by a new file nor handed back.
+     */
+    public synchronized void release(Backup backup, Path p) {
+        Candidate candidate = candidatesByPath.get(new PathKey(backup, p));
+        if (candidate != null) {
+            take(backup, candidate);
+        }
+    }
+
+    private void take(Backup backup, Candidate candidate) {
+        candidate.taken = true;
+        forget(backup, candidate);
+    }
+
+    private void forget(Backup backup, Candidate candidate) {
+        Key key = new Key(backup, candidate.record.getSize(), candidate.record.getLastModifiedTime());
+        List<Candidate> matches = candidates.get(key);
+        matches.remove(candidate);
+        if (matches.isEmpty()) {
+            candidates.remove(key);
+        }
+        candidatesByPath.remove(new PathKey(backup, candidate.record.getPath()), candidate);
+    }
+
+    private void expire() {
+        List<Deletion> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (!deletions.isEmpty() && deletions.peek().deadline <= now) {
+                Deletion deletion = deletions.poll();
+                for (Candidate candidate : deletion.candidates) {
+                    if (!candidate.taken) {
+                        forget(deletion.backup, candidate);
+                    }
+                }
+                expired.add(deletion);
+            }
+        }
+
+        for (Deletion deletion : expired) {
+            List<LocalRecord> unclaimed = new ArrayList<>();
+            deletion.candidates.stream().filter(c -> !c.taken).forEach(c -> unclaimed.add(c.record));
+            if (!unclaimed.isEmpty()) {
+                try {
+                    listener.unclaimed(deletion.backup, deletion.path, unclaimed);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Deletion {
+        private final Backup backup;
+        private final Path path;
+        private final long deadline;
+        private final List<Candidate> candidates = new ArrayList<>();
+
+        private Deletion(Backup backup, Path path, long deadline) {
+            this.backup = backup;
+            this.path = path;
+            this.deadline = deadline;
+        }
+    }
+
+    // compared by identity, as each one is a single deleted file
+    private static class Candidate {
+        private final LocalRecord record;
+
+        // claimed by a new file, or released as the file is back
+        private boolean taken;
+
+        private Candidate(LocalRecord record) {
+            this.record = record;
+        }
+    }
+
+    private static class Key {
+        private final long backupId;
+        private final long size;
+        private final long lastModifiedTime;
+
+        private Key(Backup backup, long size, long lastModifiedTime) {
+            this.backupId = backup.getId();
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return backupId == other.backupId && size == other.size && lastModifiedTime == other.lastModifiedTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(backupId, size, lastModifiedTime);
+        }
+    }
+
+    private static class PathKey {
+        private final long backupId;
+        private final Path path;
+
+        private PathKey(Backup backup, Path path) {
+            this.backupId = backup.getId();
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) o;
+            return backupId == other.backupId && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(backupId, path);
+        }
+    }
+}
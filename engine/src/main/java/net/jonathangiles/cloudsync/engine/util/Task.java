@@ -1,9 +1,12 @@
 package net.jonathangiles.cloudsync.engine.util;
 
 import lombok.Getter;
+import lombok.Setter;
 import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.model.LocalRecord;
 
 import java.nio.file.Path;
+import java.util.List;
 
 @Getter
 public class Task {
@@ -11,31 +14,79 @@ public class Task {
     public enum Type {
         UPLOAD_FILE,
         REPLACE_FILE,
-        DELETE_FILE
+        COPY_FILE,
+        DELETE_FILE,
+        DELETE_FILES
     }
 
     public enum Status {
         QUEUED,
         IN_PROGRESS,
-        COMPLETE
+        COMPLETE,
+        FAILED,
+        SUPERSEDED
     }
 
-    public static Task create(Type type, Backup backup, Path p, Runnable r) {
+    public static Task create(Type type, Backup backup, Path p, LocalRecord record, Runnable r) {
         Task t = new Task();
         t.type = type;
         t.backup = backup;
         t.path = p;
+        t.record = record;
         t.runnable = r;
         return t;
     }
 
+    /**
+     * Creates a task that fills the file at the given path from the cloud copy of the source record, rather than
+     * uploading it.
+     */
+    public static Task createCopy(Backup backup, Path p, LocalRecord record, LocalRecord source, Runnable r) {
+        Task t = create(Type.COPY_FILE, backup, p, record, r);
+        t.source = source;
+        return t;
+    }
+
+    /**
+     * Creates a task that removes the cloud copies of many files at once - those that were under a deleted directory.
+     * Before the runnable is run, the list is cut down to the records whose cloud copies were removed.
+     */
+    public static Task createDeleteAll(Backup backup, Path directory, List<LocalRecord> records, Runnable r) {
+        Task t = create(Type.DELETE_FILES, backup, directory, null, r);
+        t.records = records;
+        return t;
+    }
+
     private Type type;
     private Backup backup;
     private Path path;
+
+    // the record for the file - the cloud store reads and updates the block list on it as part of an upload
+    private LocalRecord record;
+
+    // for COPY_FILE tasks, the record whose cloud copy has the same content as this file
+    private LocalRecord source;
+
+    // for DELETE_FILES tasks, the records of the files to remove
+    private List<LocalRecord> records;
+
     private Runnable runnable;
 
-    // TODO update the task status as it occurs, in an observable way
-    private Status status = Status.QUEUED;
+    // queued by the background checks at startup, so it goes behind the tasks for live changes
+    @Setter
+    private boolean background;
+
+    // run instead of the runnable if the task is dropped because a newer task for the same path replaced it
+    @Setter
+    private Runnable onSuperseded;
+
+    // kept up to date by Metrics as the task moves through the queue and the cloud store
+    @Setter
+    private volatile Status status = Status.QUEUED;
+
+    // System.nanoTime() when the task was queued
+    @Setter
+    private long queuedTime;
 
     private Task() { }
 }
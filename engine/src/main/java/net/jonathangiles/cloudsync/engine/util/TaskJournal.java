@@ -0,0 +1,341 @@
+package net.jonathangiles.cloudsync.engine.util;
+
+import net.jonathangiles.cloudsync.engine.model.Backup;
+import net.jonathangiles.cloudsync.engine.util.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the paths that have been queued for the cloud but not yet recorded as synced, and of how
+ * far each backup's consistency check got. It is replayed at startup, so that a restart in the middle of a long sync
+ * picks up where it stopped: pending paths are checked again, and directories the interrupted consistency check had
+ * already queued are not checked a second time.
+ *
+ * <p>Records are written on a single writer thread, and everything that arrives while one batch is being written is
+ * forced to disk together with the next, so the cost of an fsync is shared by many records. Each record carries a CRC,
+ * so a journal that was damaged (rather than just cut short by a crash) is detected and not trusted.
+ *
+ * <p>Nothing waits for a record to be forced, so a crash can lose the last few records. They are always the latest,
+ * as records are written in order: a task queued during the consistency check loses its entry along with the record
+ * of its directory being checked, so the check goes through the directory again, and a change found by the watcher
+ * leaves its directory no longer matching the summary of the last check.
+ */
+@Singleton
+public class TaskJournal {
+
+    private static final byte QUEUED = 1;
+    private static final byte SYNCED = 2;
+    private static final byte CHECK_STARTED = 3;
+    private static final byte DIRECTORY_CHECKED = 4;
+    private static final byte CHECK_COMPLETE = 5;
+
+    // a type byte and two strings of at most 65535 bytes, each with a two byte length
+    private static final int MAX_RECORD_LENGTH = 1 + 2 * (2 + 65535);
+
+    // once the journal grows past this, it is rewritten with only the state that is still live
+    private static final long COMPACTION_SIZE = 64 * 1024 * 1024;
+
+    private final Path file;
+
+    private final BlockingQueue<byte[]> records = new LinkedBlockingQueue<>();
+
+    // the live state, as of the records written so far. Pending paths are counted, as a path can be queued again before its first task is synced
+    private final Map<String, Map<String, Integer>> pending = new HashMap<>();
+    private final Map<String, Set<String>> checkedDirectories = new HashMap<>();
+
+    // how many times each path was pending when the journal of the last run was replayed
+    private final Map<String, Map<String, Integer>> lastRunPending = new HashMap<>();
+
+    private FileChannel channel;
+    private boolean intact;
+    private volatile boolean writing;
+
+    @Inject
+    public TaskJournal(Config config) {
+        // by default the journal is kept next to the local database, so that the two are lost or kept together
+        this.file = config.getTaskJournal() != null
+                ? Paths.get(config.getTaskJournal())
+                : Paths.get(System.getProperty("derby.system.home", "."), "db", "tasks.journal");
+    }
+
+    /**
+     * Replays the journal left by the last run, then starts a new one holding only the state that is still live.
+     * Returns true if the journal was there and intact - if not, nothing is known about the last run and a full
+     * consistency check is needed.
+     */
+    public synchronized boolean open() {
+        if (channel != null) {
+            return intact;
+        }
+
+        intact = false;
+        if (Files.exists(file)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                intact = replay(new DataInputStream(in));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!intact) {
+                System.out.println("Task journal " + file + " is damaged - it will be discarded");
+                pending.clear();
+                checkedDirectories.clear();
+            }
+        }
+        pending.forEach((backup, paths) -> lastRunPending.put(backup, new HashMap<>(paths)));
+
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            rewrite();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return intact;
+        }
+
+        writing = true;
+        Thread writer = new Thread(this::writeLoop, "task-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return intact;
+    }
+
+    /**
+     * The paths in the backup that were queued in the last run but never recorded as synced.
+     */
+    public synchronized Set<Path> getPendingPaths(Backup backup) {
+        Set<Path> paths = new HashSet<>();
+        pending.getOrDefault(backup.getBackupName(), Collections.emptyMap()).keySet().forEach(p -> paths.add(Paths.get(p)));
+        return paths;
+    }
+
+    /**
+     * If the last consistency check of the backup was interrupted, the directories it had already checked (and queued
+     * any changes for). Empty if the check completed.
+     */
+    public synchronized Set<Path> getCheckedDirectories(Backup backup) {
+        Set<Path> paths = new HashSet<>();
+        checkedDirectories.getOrDefault(backup.getBackupName(), Collections.emptySet()).forEach(p -> paths.add(Paths.get(p)));
+        return paths;
+    }
+
+    public void queued(Backup backup, Path p) {
+        append(QUEUED, backup, p.toString());
+    }
+
+    /**
+     * Called once the change to the path has been committed to the local data store.
+     */
+    public void synced(Backup backup, Path p) {
+        append(SYNCED, backup, p.toString());
+    }
+
+    /**
+     * Called once a path that was pending in the last run has been checked again, which journals anew any task it
+     * still needs. Its entries from the last run are done with, however many times it was queued then.
+     */
+    public void resumed(Backup backup, Path p) {
+        int count;
+        synchronized (this) {
+            count = lastRunPending.getOrDefault(backup.getBackupName(), Collections.emptyMap()).getOrDefault(p.toString(), 0);
+        }
+        for (int i = 0; i < count; i++) {
+            append(SYNCED, backup, p.toString());
+        }
+    }
+
+    /**
+     * Called as a consistency check begins - unless it is resuming an interrupted one, whose progress is kept.
+     */
+    public void checkStarted(Backup backup) {
+        append(CHECK_STARTED, backup, "");
+    }
+
+    /**
+     * Called after every file in the directory has been checked and any changes queued.
+     */
+    public void directoryChecked(Backup backup, Path directory) {
+        append(DIRECTORY_CHECKED, backup, directory.toString());
+    }
+
+    public void checkComplete(Backup backup) {
+        append(CHECK_COMPLETE, backup, "");
+    }
+
+    private void append(byte type, Backup backup, String path) {
+        if (!writing) {
+            // the journal was never opened (or could not be), so there is nothing to keep it in
+            return;
+        }
+        try {
+            records.add(encode(type, backup.getBackupName(), path));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(records.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            records.drainTo(batch);
+
+            synchronized (this) {
+                try {
+                    for (byte[] record : batch) {
+                        write(channel, record);
+                        apply(record);
+                    }
+                    channel.force(false);
+
+                    if (channel.size() > COMPACTION_SIZE) {
+                        rewrite();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /*
+     * Returns false if a record is damaged. A record that was cut short is where the last run stopped writing, so it
+     * is simply the end of the journal.
+     */
+    private boolean replay(DataInputStream in) throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return true;
+            }
+
+            long crc;
+            byte[] record;
+            try {
+                crc = in.readLong();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    return false;
+                }
+                record = new byte[length];
+                in.readFully(record);
+            } catch (EOFException e) {
+                return true;
+            }
+
+            CRC32 check = new CRC32();
+            check.update(record);
+            if (check.getValue() != crc) {
+                return false;
+            }
+            apply(record);
+        }
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String backup = in.readUTF();
+        String path = in.readUTF();
+
+        switch (type) {
+            case QUEUED:
+                pending.computeIfAbsent(backup, b -> new HashMap<>()).merge(path, 1, Integer::sum);
+                break;
+            case SYNCED:
+                Map<String, Integer> paths = pending.get(backup);
+                if (paths != null) {
+                    paths.computeIfPresent(path, (p, count) -> count > 1 ? count - 1 : null);
+                }
+                break;
+            case CHECK_STARTED:
+                checkedDirectories.put(backup, new HashSet<>());
+                break;
+            case DIRECTORY_CHECKED:
+                checkedDirectories.computeIfAbsent(backup, b -> new HashSet<>()).add(path);
+                break;
+            case CHECK_COMPLETE:
+                checkedDirectories.remove(backup);
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    /*
+     * Writes the live state to a new journal, and swaps it in for the old one.
+     */
+    private void rewrite() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Map<String, Integer>> backup : pending.entrySet()) {
+                for (Map.Entry<String, Integer> path : backup.getValue().entrySet()) {
+                    for (int i = 0; i < path.getValue(); i++) {
+                        write(out, encode(QUEUED, backup.getKey(), path.getKey()));
+                    }
+                }
+            }
+            for (Map.Entry<String, Set<String>> backup : checkedDirectories.entrySet()) {
+                write(out, encode(CHECK_STARTED, backup.getKey(), ""));
+                for (String directory : backup.getValue()) {
+                    write(out, encode(DIRECTORY_CHECKED, backup.getKey(), directory));
+                }
+            }
+            out.force(true);
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] encode(byte type, String backup, String path) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(backup);
+        out.writeUTF(path);
+        return bytes.toByteArray();
+    }
+
+    private static void write(FileChannel channel, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        ByteBuffer buffer = ByteBuffer.allocate(12 + record.length);
+        buffer.putInt(record.length);
+        buffer.putLong(crc.getValue());
+        buffer.put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
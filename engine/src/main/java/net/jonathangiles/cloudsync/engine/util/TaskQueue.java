@@ -1,29 +1,145 @@
 package net.jonathangiles.cloudsync.engine.util;
 
-import io.reactivex.Observable;
-import io.reactivex.subjects.PublishSubject;
-import io.reactivex.subjects.Subject;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
 import net.jonathangiles.cloudsync.engine.BackupEngine;
 import net.jonathangiles.cloudsync.engine.cloud.CloudStore;
+import net.jonathangiles.cloudsync.engine.metrics.Metrics;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Rather than have the {@link BackupEngine} push directly into the
  * implementation of {@link CloudStore}, we instead have this
  * intermediate task queue to push tasks related to file changes to the cloud. This enables better client-side reporting
  * when we know the size and contents of the pending tasks.
+ *
+ * <p>The queue is bounded: once {@link #CAPACITY} tasks are waiting, {@link #send(Task)} blocks the producer until the
+ * consumer requests more. This keeps memory flat when a consistency check finds millions of files to upload, as the
+ * scan can only run as far ahead of the uploads as the queue allows.
+ *
+ * <p>Background tasks (those from the checks run at startup) wait in a queue of their own, and are only taken when
+ * there are no live tasks waiting, so a change made while a long check is running is backed up straight away rather
+ * than behind everything the check found. The two queues are bounded separately, so a check that has filled its queue
+ * never blocks live changes from being queued. Queueing a background task never waits: the checks queue their tasks
+ * while holding the backup they are checking, which the watcher needs for live changes, so they wait for room with
+ * {@link #awaitBackgroundRoom()} before taking hold of it instead. The background queue can run over its capacity by
+ * the tasks of the directories being checked at the time.
+ *
+ * <p>Tasks queued by the callback of another task (see {@link #sendFollowUp(Task)}) must never block: the callback runs
+ * on a thread that the cloud store needs back to drain the queue, so if every such thread waited for room the queue
+ * would never empty. They go in a third, unbounded, queue instead. There can't be many of them, as each one follows a
+ * task that has already been taken from the queue, and they are taken before any other task.
  */
 @Singleton
 public class TaskQueue {
 
-    private final Subject<Task> bus = PublishSubject.create();
+    static final int CAPACITY = 1024;
 
+    private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Queue<Task> backgroundQueue = new ConcurrentLinkedQueue<>();
+    private final Object backgroundRoom = new Object();
+    private final AtomicInteger backgroundSize = new AtomicInteger();
+    private final Queue<Task> followUpQueue = new ConcurrentLinkedQueue<>();
+
+    // one permit for each task waiting in any of the queues
+    private final Semaphore available = new Semaphore(0);
+
+    private final Metrics metrics;
+
+    // taking from the queue blocks, so tasks are emitted from a dedicated thread rather than from whichever thread
+    // happens to request more
+    private final Scheduler emitter = Schedulers.from(Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "task-queue");
+        t.setDaemon(true);
+        return t;
+    }));
+
+    private final Flowable<Task> flowable = Flowable.<Task>generate(e -> e.onNext(take())).subscribeOn(emitter);
+
+    @Inject
+    public TaskQueue(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues a task from a producer (a scan, or the watcher). A live task waits for room if the queue is full, a
+     * background task never waits (see {@link #awaitBackgroundRoom()}).
+     */
     public void send(Task task) {
-        bus.onNext(task);
+        metrics.taskQueued(task);
+        if (task.isBackground()) {
+            backgroundQueue.add(task);
+            backgroundSize.incrementAndGet();
+            available.release();
+            return;
+        }
+        try {
+            queue.put(task);
+            available.release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until there is room for more background tasks.
+     */
+    public void awaitBackgroundRoom() {
+        synchronized (backgroundRoom) {
+            try {
+                while (backgroundSize.get() >= CAPACITY) {
+                    backgroundRoom.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queues a task from the callback of another task, without ever waiting.
+     */
+    public void sendFollowUp(Task task) {
+        metrics.taskQueued(task);
+        followUpQueue.add(task);
+        available.release();
+    }
+
+    private Task take() throws InterruptedException {
+        available.acquire();
+        // with a single subscriber, a permit means there is a task in one of the queues
+        Task task = followUpQueue.poll();
+        if (task == null) {
+            task = queue.poll();
+        }
+        if (task != null) {
+            return task;
+        }
+
+        task = backgroundQueue.poll();
+        if (backgroundSize.decrementAndGet() < CAPACITY) {
+            synchronized (backgroundRoom) {
+                backgroundRoom.notifyAll();
+            }
+        }
+        return task;
     }
 
-    public Observable<Task> toObserverable() {
-        return bus;
+    /**
+     * Tasks are only taken off the queue as they are requested, so subscribers control the rate of the producers by
+     * how much they request. There should only be one subscriber - each task is delivered once.
+     */
+    public Flowable<Task> toFlowable() {
+        return flowable;
     }
 }
@@ -1,122 +0,0 @@
-package net.jonathangiles.cloudsync.engine.util;
-
-import java.nio.file.*;
-import static java.nio.file.StandardWatchEventKinds.*;
-import static java.nio.file.LinkOption.*;
-import java.nio.file.attribute.*;
-import java.io.*;
-import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.function.BiConsumer;
-
-public class WatchDir {
-
-    private static final int SLEEP_DURATION = 5000;
-
-    private final WatchService watcher;
-    private final Map<WatchKey, Path> keys;
-    private final boolean recursive;
-    private final BiConsumer<WatchEvent, Path> eventConsumer;
-
-    private ExecutorService watchService = Executors.newSingleThreadExecutor();
-
-    /**
-     * Creates a WatchService and registers the given directory
-     */
-    public WatchDir(Path dir, boolean recursive, BiConsumer<WatchEvent,Path> eventConsumer) throws IOException {
-        this.watcher = FileSystems.getDefault().newWatchService();
-        this.keys = new HashMap<>();
-        this.recursive = recursive;
-        this.eventConsumer = eventConsumer;
-
-        if (recursive) {
-            registerAll(dir);
-        } else {
-            register(dir);
-        }
-
-        watchService.submit(this::processEvents);
-    }
-
-    /**
-     * Register the given directory with the WatchService
-     */
-    private void register(Path dir) throws IOException {
-        WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-        keys.put(key, dir);
-    }
-
-    /**
-     * Register the given directory, and all its sub-directories, with the
-     * WatchService.
-     */
-    private void registerAll(final Path start) throws IOException {
-        // register directory and sub-directories
-        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                register(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
-    }
-
-    private void processEvents() {
-        while (true) {
-            WatchKey key;
-            try {
-                key = watcher.take();
-            } catch (InterruptedException x) {
-                return;
-            }
-
-            Path dir = keys.get(key);
-            if (dir == null) {
-                continue;
-            }
-
-            for (WatchEvent<?> event: key.pollEvents()) {
-                WatchEvent.Kind kind = event.kind();
-
-                if (kind == OVERFLOW) {
-                    continue;
-                }
-
-                Path name = (Path)event.context();
-                Path child = dir.resolve(name);
-
-                // send event over to backup client to handle it appropriately
-                eventConsumer.accept(event, child);
-
-                // if directory is created, and watching recursively, then
-                // register it and its sub-directories
-                if (recursive && (kind == ENTRY_CREATE)) {
-                    try {
-                        if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
-                            registerAll(child);
-                        }
-                    } catch (IOException x) {
-                        // ignore to keep sample readbale
-                    }
-                }
-            }
-
-            // reset key and remove from set if directory no longer accessible
-            boolean valid = key.reset();
-            if (!valid) {
-                keys.remove(key);
-
-                // all directories are inaccessible
-                if (keys.isEmpty()) {
-                    break;
-                }
-            }
-
-            try {
-                Thread.sleep(SLEEP_DURATION);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-}
\ No newline at end of file
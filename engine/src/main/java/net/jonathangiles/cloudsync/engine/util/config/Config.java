@@ -9,6 +9,7 @@ import net.jonathangiles.cloudsync.engine.model.Backup;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -30,10 +31,274 @@ public class Config {
     @InjectConfig("backups")
     private List<Map<String, String>> backups;
 
+    // where files are backed up to: "azure", or "simulated" for a local simulation of a cloud store
+    @InjectConfig
+    private Optional<String> cloudStore;
+
+    // the simulated cloud store keeps its blobs in this directory, or discards them if it isn't set
+    @InjectConfig
+    private Optional<String> simulatorDirectory;
+
+    // how long (in milliseconds) each simulated request takes, before any data is transferred
+    @InjectConfig
+    private Optional<Long> simulatorLatency;
+
+    // the bandwidth (in bytes per second) shared by all simulated transfers, or 0 for no limit
+    @InjectConfig
+    private Optional<Long> simulatorBandwidth;
+
+    // the fraction of simulated requests that are throttled and have to be retried
+    @InjectConfig
+    private Optional<Double> simulatorThrottleRate;
+
+    // where the journal of pending tasks is kept - by default, next to the local database
+    @InjectConfig
+    private Optional<String> taskJournal;
+
+    // how long (in milliseconds) a path must go without file system events before its changes are processed
+    @InjectConfig
+    private Optional<Long> watchQuietPeriod;
+
+    // the longest (in milliseconds) the changes to a path are held back while it keeps changing
+    @InjectConfig
+    private Optional<Long> watchMaxDelay;
+
+    // whether the watchers start as soon as the engine does, with the startup checks running in the background, rather
+    // than once the checks are done
+    @InjectConfig
+    private Optional<Boolean> watchFirst;
+
+    // how many threads hand file system events to the backups - they all share one watch service
+    @InjectConfig
+    private Optional<Integer> watchThreads;
+
+    // how long (in milliseconds) a deleted file is held back, in case a new file turns out to have been moved from it.
+    // 0 turns rename detection off
+    @InjectConfig
+    private Optional<Long> renameWindow;
+
+    // when the local records are reconciled with a listing of the cloud at startup: "auto" (when a backup has no
+    // records, as with a new or lost database), "always" or "never"
+    @InjectConfig
+    private Optional<String> reconcile;
+
+    // where records are kept: "jpa" for the embedded Derby database, or "log" for the log-structured store
+    @InjectConfig
+    private Optional<String> dataStore;
+
+    // the directory the log-structured store keeps its files in - by default, next to the Derby database
+    @InjectConfig
+    private Optional<String> logDataStoreDirectory;
+
+    // how many record changes the log-structured store keeps in memory before merging them into its sorted table
+    @InjectConfig
+    private Optional<Long> logCompactionThreshold;
+
+    // how long (in milliseconds) the database writer waits for more changes to group into one commit
+    @InjectConfig
+    private Optional<Long> dbCommitInterval;
+
+    // the most changes that are grouped into one commit
+    @InjectConfig
+    private Optional<Integer> dbCommitBatchSize;
+
+    // how many tasks the cloud store runs at once to start with - it adapts between the min and max from there
+    @InjectConfig
+    private Optional<Integer> uploadConcurrency;
+
+    @InjectConfig
+    private Optional<Integer> minUploadConcurrency;
+
+    @InjectConfig
+    private Optional<Integer> maxUploadConcurrency;
+
+    // whether small uploads and deletes are sent with non-blocking I/O, so many more of them can be in flight at once
+    @InjectConfig
+    private Optional<Boolean> asyncUploads;
+
+    // files up to this size (in bytes) are uploaded with non-blocking I/O
+    @InjectConfig
+    private Optional<Long> asyncUploadThreshold;
+
+    // the threads that drive all of the non-blocking requests
+    @InjectConfig
+    private Optional<Integer> asyncIoThreads;
+
+    // how many directories the consistency check scans at once
+    @InjectConfig
+    private Optional<Integer> scanParallelism;
+
+    // files larger than this (in bytes) are uploaded as blocks in parallel
+    @InjectConfig
+    private Optional<Long> largeFileThreshold;
+
+    @InjectConfig
+    private Optional<Integer> largeFileUploadThreads;
+
+    // the most bytes of large file blocks that can be queued or uploading at once
+    @InjectConfig
+    private Optional<Long> largeFileMaxInFlightBytes;
+
+    // the codec uploads are compressed with, or "none"
+    @InjectConfig
+    private Optional<String> compression;
+
+    // whether small files are grouped into pack blobs rather than each uploaded to a blob of their own
+    @InjectConfig
+    private Optional<Boolean> packSmallFiles;
+
+    // files up to this size (in bytes) are packed
+    @InjectConfig
+    private Optional<Long> packFileThreshold;
+
+    // a pack is uploaded once it reaches this size (in bytes)...
+    @InjectConfig
+    private Optional<Long> packSize;
+
+    // ...or once its oldest file has waited this long (in milliseconds)
+    @InjectConfig
+    private Optional<Long> packFlushInterval;
+
     public Stream<BackupConfig> getBackupConfig() {
         return backups.stream().map(BackupConfig::new);
     }
 
+    public String getCloudStore() {
+        return get(cloudStore, "azure");
+    }
+
+    public String getSimulatorDirectory() {
+        return get(simulatorDirectory, null);
+    }
+
+    public long getSimulatorLatency() {
+        return get(simulatorLatency, 20L);
+    }
+
+    public long getSimulatorBandwidth() {
+        return get(simulatorBandwidth, 0L);
+    }
+
+    public double getSimulatorThrottleRate() {
+        return get(simulatorThrottleRate, 0.0);
+    }
+
+    public String getTaskJournal() {
+        return get(taskJournal, null);
+    }
+
+    public long getWatchQuietPeriod() {
+        return get(watchQuietPeriod, 1000L);
+    }
+
+    public long getWatchMaxDelay() {
+        return get(watchMaxDelay, 30000L);
+    }
+
+    public boolean isWatchFirst() {
+        return get(watchFirst, true);
+    }
+
+    public int getWatchThreads() {
+        return get(watchThreads, 2);
+    }
+
+    public long getRenameWindow() {
+        return get(renameWindow, 5000L);
+    }
+
+    public String getReconcile() {
+        return get(reconcile, "auto");
+    }
+
+    public String getDataStore() {
+        return get(dataStore, "jpa");
+    }
+
+    public String getLogDataStoreDirectory() {
+        return get(logDataStoreDirectory, null);
+    }
+
+    public long getLogCompactionThreshold() {
+        return get(logCompactionThreshold, 250000L);
+    }
+
+    public long getDbCommitInterval() {
+        return get(dbCommitInterval, 50L);
+    }
+
+    public int getDbCommitBatchSize() {
+        return get(dbCommitBatchSize, 1000);
+    }
+
+    public int getUploadConcurrency() {
+        return get(uploadConcurrency, 5);
+    }
+
+    public int getMinUploadConcurrency() {
+        return get(minUploadConcurrency, 1);
+    }
+
+    public int getMaxUploadConcurrency() {
+        // in-flight non-blocking requests don't each need a thread, so there can be many more of them
+        return get(maxUploadConcurrency, isAsyncUploads() ? 1024 : 64);
+    }
+
+    public boolean isAsyncUploads() {
+        return get(asyncUploads, false);
+    }
+
+    public long getAsyncUploadThreshold() {
+        return get(asyncUploadThreshold, 1024L * 1024);
+    }
+
+    public int getAsyncIoThreads() {
+        return get(asyncIoThreads, 2);
+    }
+
+    public long getLargeFileThreshold() {
+        return get(largeFileThreshold, 256L * 1024 * 1024);
+    }
+
+    public int getScanParallelism() {
+        return get(scanParallelism, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getLargeFileUploadThreads() {
+        return get(largeFileUploadThreads, 8);
+    }
+
+    public long getLargeFileMaxInFlightBytes() {
+        return get(largeFileMaxInFlightBytes, 128L * 1024 * 1024);
+    }
+
+    public String getCompression() {
+        return get(compression, "gzip");
+    }
+
+    public boolean isPackSmallFiles() {
+        return get(packSmallFiles, false);
+    }
+
+    public long getPackFileThreshold() {
+        return get(packFileThreshold, 64L * 1024);
+    }
+
+    public long getPackSize() {
+        return get(packSize, 8L * 1024 * 1024);
+    }
+
+    public long getPackFlushInterval() {
+        return get(packFlushInterval, 5000L);
+    }
+
+    /*
+     * Tuning values are optional in config.json - these fall back to a sensible default when they are left out.
+     */
+    private static <T> T get(Optional<T> value, T defaultValue) {
+        return value != null ? value.orElse(defaultValue) : defaultValue;
+    }
+
 
     public static class BackupConfig {
         private final Map<String,String> map;
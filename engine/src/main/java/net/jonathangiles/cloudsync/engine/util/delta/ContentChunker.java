@@ -0,0 +1,109 @@
+package net.jonathangiles.cloudsync.engine.util.delta;
+
+import net.jonathangiles.cloudsync.engine.util.ContentHash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Splits file content into content-defined chunks using a gear rolling hash. Because chunk boundaries are derived from
+ * the bytes themselves rather than from fixed offsets, an edit to a file only changes the chunks around the edit, and
+ * every other chunk keeps the same hash (and therefore the same block id) as it had in the previous upload.
+ */
+public final class ContentChunker {
+
+    public static final int MIN_CHUNK_SIZE = 1024 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // a boundary is declared when the top 21 bits of the rolling hash are zero, which gives an average chunk size of
+    // roughly 2MB past the minimum chunk size
+    private static final long BOUNDARY_MASK = ((1L << 21) - 1) << 43;
+
+    // the gear hash only depends on the last 64 bytes, so we only need to start hashing just before the minimum size
+    private static final int HASH_WINDOW = 64;
+
+    private static final long[] GEAR = new long[256];
+    static {
+        // fixed seed - boundaries must be identical across runs and machines for block ids to be reusable
+        Random random = new Random(0x636c6f7564L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        void accept(byte[] buffer, int length, String blockId) throws IOException;
+    }
+
+    private ContentChunker() { }
+
+    /**
+     * Reads the given stream to the end, handing each chunk to the consumer in order. The buffer passed to the consumer
+     * is reused for the next chunk, so it must not be retained once {@link ChunkConsumer#accept} returns.
+     */
+    public static void chunk(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[MAX_CHUNK_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        int length = 0;
+        boolean eof = false;
+
+        while (true) {
+            // top the buffer up so that we always have a full chunk's worth of bytes to search for a boundary in
+            while (!eof && length < buffer.length) {
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    length += read;
+                }
+            }
+
+            if (length == 0) {
+                return;
+            }
+
+            int cut = findBoundary(view, 0, length);
+            if (cut < 0) {
+                // no boundary before the end of the file, so whatever remains is the final chunk
+                cut = length;
+            }
+
+            consumer.accept(buffer, cut, blockId(view, 0, cut));
+
+            System.arraycopy(buffer, cut, buffer, 0, length - cut);
+            length -= cut;
+        }
+    }
+
+    /**
+     * Returns the (absolute) position of the end of the chunk starting at {@code start}, or -1 if there is no boundary
+     * in {@code [start, end)} and fewer than {@link #MAX_CHUNK_SIZE} bytes are available.
+     */
+    public static int findBoundary(ByteBuffer data, int start, int end) {
+        int limit = Math.min(end, start + MAX_CHUNK_SIZE);
+        long hash = 0;
+        for (int i = start + MIN_CHUNK_SIZE - HASH_WINDOW; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+            if (i + 1 - start >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit - start == MAX_CHUNK_SIZE ? limit : -1;
+    }
+
+    /**
+     * Block ids are the Base64 encoded SHA-256 of the chunk content. Azure requires all block ids within a blob to be
+     * the same length, which a fixed size digest gives us for free.
+     */
+    public static String blockId(ByteBuffer data, int start, int end) {
+        ByteBuffer chunk = data.duplicate();
+        chunk.limit(end).position(start);
+        MessageDigest digest = ContentHash.newDigest();
+        digest.update(chunk);
+        return ContentHash.toString(digest);
+    }
+}
@@ -0,0 +1,121 @@
+package net.jonathangiles.cloudsync.engine.cloud.azure;
+
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import net.jonathangiles.cloudsync.engine.cloud.codec.Codec;
+import net.jonathangiles.cloudsync.engine.util.delta.ContentChunker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LargeFileUploaderTest {
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        // random content, so the file splits into many blocks
+        byte[] content = new byte[64 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        file = Files.createTempFile("large", ".bin");
+        Files.write(file, content);
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test(timeout = 60000)
+    public void failedUploadGivesBackItsInFlightBytes() throws Exception {
+        AtomicBoolean slow = new AtomicBoolean(true);
+        AtomicBoolean fail = new AtomicBoolean(true);
+
+        // a single, slow upload thread, so the rest of the blocks are still queued when the first one fails
+        LargeFileUploader uploader = new LargeFileUploader(1, ContentChunker.MAX_CHUNK_SIZE) {
+            @Override
+            protected void sendBlock(CloudBlockBlob blob, String blockId, ByteBuffer chunk, Codec codec) throws IOException {
+                if (slow.get()) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (fail.getAndSet(false)) {
+                    throw new IOException("injected failure");
+                }
+            }
+        };
+        int available = uploader.getAvailableInFlightBytes();
+
+        try {
+            upload(uploader);
+            fail("expected the upload to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // a block's bytes are given back just after its future completes, so allow them a moment
+        long deadline = System.currentTimeMillis() + 5000;
+        while (uploader.getAvailableInFlightBytes() != available && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(available, uploader.getAvailableInFlightBytes());
+
+        // and the next upload isn't starved of in flight bytes
+        slow.set(false);
+        assertFalse(upload(uploader).isEmpty());
+    }
+
+    @Test(timeout = 60000)
+    public void truncatedFileFailsTheUpload() throws Exception {
+        AtomicBoolean truncated = new AtomicBoolean();
+
+        // the file is cut short as its first block is sent, while the scan is part way through the first window (and
+        // by then waiting for in flight bytes, as only one block's worth is allowed)
+        LargeFileUploader uploader = new LargeFileUploader(1, ContentChunker.MAX_CHUNK_SIZE) {
+            @Override
+            protected void sendBlock(CloudBlockBlob blob, String blockId, ByteBuffer chunk, Codec codec) throws IOException {
+                if (!truncated.getAndSet(true)) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(0);
+                    }
+                }
+            }
+        };
+
+        try {
+            upload(uploader);
+            fail("expected the upload to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private List<String> upload(LargeFileUploader uploader) throws Exception {
+        return uploader.uploadBlocks(null, file, Collections.emptySet(), new HashSet<>(),
+                MessageDigest.getInstance("SHA-256"), null);
+    }
+}